@@ -0,0 +1,98 @@
+#!/usr/bin/env groovy
+import eu.spaziodati.azkaban.ScriptCompilerConfig
+
+/*********************************************************************************
+ *
+ *     Compares the compilation modes available for Groovy jobs
+ *     (see groovy.compileStatic and groovy.indy) on a few representative scripts.
+ *
+ *     The configurations are created by ScriptCompilerConfig, as for the jobs.
+ *
+ *     Usage (the plugin jar must be in the classpath):
+ *       groovy -cp target/azkaban-groovy-plugins-<version>.jar \
+ *              scripts/benchmark-compiler.groovy [iterations] [script files...]
+ *     If no script file is provided, the embedded samples are used.
+ *     Set COMPILER_CONFIG to the path of a groovy.compilerConfig script to apply it to all the modes.
+ *
+ *********************************************************************************/
+
+def samples = [
+        'numeric loop': '''
+            long sum = 0
+            for (int i = 0; i < 5000000; i++) {
+                sum += (i % 7) * (i % 13)
+            }
+            return sum
+        ''',
+        'string building': '''
+            StringBuilder sb = new StringBuilder()
+            for (int i = 0; i < 200000; i++) {
+                sb.append("key").append(i).append('=').append(i * 2).append(';')
+            }
+            return sb.length()
+        ''',
+        'collections': '''
+            List<Integer> values = (0..<200000).toList()
+            Map<Integer, Integer> groups = [:]
+            for (Integer v : values) {
+                Integer k = v % 100
+                Integer c = groups.get(k)
+                groups.put(k, c == null ? 1 : c + 1)
+            }
+            return groups.size()
+        ''',
+        'records transformation': '''
+            List<Map<String, Object>> records = []
+            for (int i = 0; i < 100000; i++)
+                records.add([id: i, name: "name" + i, score: i * 0.5d] as Map<String, Object>)
+            double total = 0
+            for (Map<String, Object> r : records) {
+                String name = (String) r.get("name")
+                if (name.endsWith("7")) total += (Double) r.get("score")
+            }
+            return total
+        '''
+]
+
+def iterations = args.length > 0 ? args[0] as int : 10
+if (args.length > 1) {
+    samples = args[1..-1].collectEntries { [(new File(it).name): new File(it).getText("UTF-8")] }
+}
+
+def modes = [
+        'dynamic'      : [:],
+        'indy'         : [(ScriptCompilerConfig.INDY): 'true'],
+        'static'       : [(ScriptCompilerConfig.COMPILE_STATIC): 'true'],
+        'static + indy': [(ScriptCompilerConfig.COMPILE_STATIC): 'true', (ScriptCompilerConfig.INDY): 'true']
+]
+def configScript = System.getenv("COMPILER_CONFIG")
+def config = { Map props ->
+    def jobProps = configScript ? props + [(ScriptCompilerConfig.CONFIG_SCRIPT): configScript] : props
+    ScriptCompilerConfig.create(jobProps, new File("."), new String[0])
+}
+
+println "Iterations: $iterations (plus ${Math.max(1, iterations.intdiv(2))} for warm-up)"
+println()
+printf("%-25s %-15s %12s %12s %12s%n", "script", "mode", "compile ms", "avg run ms", "min run ms")
+
+samples.each { name, text ->
+    modes.each { mode, props ->
+        try {
+            def compilerConfig = config(props)
+            def compileStart = System.nanoTime()
+            def scriptClass = new GroovyClassLoader(getClass().classLoader, compilerConfig).parseClass(text)
+            def compileMs = (System.nanoTime() - compileStart) / 1e6
+
+            Math.max(1, iterations.intdiv(2)).times { scriptClass.newInstance().run() }
+
+            def times = (1..iterations).collect {
+                def start = System.nanoTime()
+                scriptClass.newInstance().run()
+                (System.nanoTime() - start) / 1e6
+            }
+            printf("%-25s %-15s %12.1f %12.1f %12.1f%n", name, mode, compileMs, times.sum() / times.size(), times.min())
+        } catch (Exception e) {
+            printf("%-25s %-15s %s%n", name, mode, "FAILED: " + e.message?.readLines()?.first())
+        }
+    }
+}
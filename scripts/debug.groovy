@@ -95,6 +95,37 @@ def azkaban = [
     execute: { Object... params ->
         println ">>> Execution with parameters:"
         params.each { println "    $it" }
+    },
+    executeAll: { List flows ->
+        flows.each { println ">>> Execution with parameters: $it" }
+    },
+    // the execution is reported as already completed successfully
+    executeAsync: { Object... params ->
+        println ">>> Asynchronous execution with parameters:"
+        params.each { println "    $it" }
+        def names = params.findAll { it instanceof String }
+        def flow = names ? names[Math.min(1, names.size() - 1)] : "debug_flow"
+        new Expando(execId: -1, flow: flow, status: "SUCCEEDED", success: true, done: true,
+                get: { Object... timeout -> "SUCCEEDED" },
+                isSuccess: { -> true },
+                isDone: { -> true })
+    },
+    awaitAll: { Object... params ->
+        println ">>> Waiting for ${params[0].size()} execution/s"
+        true
+    },
+    // executed sequentially while debugging
+    parallel: { Object... tasks ->
+        tasks.findAll { it instanceof Closure }.collect { it.call() }
+    },
+    eachParallel: { Object... params ->
+        params[-2].each(params[-1])
+    },
+    collectParallel: { Object... params ->
+        params[-2].collect(params[-1])
+    },
+    withLimit: { Object... params ->
+        params[-1].call()
     }
 ]
 def flowrunner = [
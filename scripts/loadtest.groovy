@@ -0,0 +1,226 @@
+#!/usr/bin/env groovy
+@groovy.lang.Grapes([
+        @Grab(group='org.mockito', module='mockito-core', version='1.10.19'),
+        @Grab(group='org.apache.sshd', module='sshd-core', version='0.14.0')
+])
+import azkaban.execapp.FlowRunner
+import azkaban.execapp.JobRunner
+import azkaban.executor.ExecutableFlow
+import azkaban.executor.ExecutableNode
+import azkaban.jobExecutor.Job
+import azkaban.utils.Props
+import eu.spaziodati.azkaban.JobUtils
+import eu.spaziodati.azkaban.Metrics
+import eu.spaziodati.azkaban.jobtype.GroovyJob
+import eu.spaziodati.azkaban.jobtype.GroovyProcessJob
+import eu.spaziodati.azkaban.jobtype.GroovyRemoteJob
+import org.apache.commons.io.FileUtils
+import org.apache.log4j.Logger
+import org.apache.log4j.varia.NullAppender
+import org.apache.sshd.SshServer
+import org.apache.sshd.server.Command
+import org.apache.sshd.server.CommandFactory
+import org.apache.sshd.server.PasswordAuthenticator
+import org.apache.sshd.server.command.ScpCommandFactory
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider
+import org.apache.sshd.server.shell.ProcessShellFactory
+import org.mockito.Mockito
+
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryType
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/*********************************************************************************
+ *
+ *     Load test of the job types without an Azkaban executor: runner lookups are
+ *     answered by stubs (see JobUtils.RunnerLocator) and GroovyRemote jobs connect
+ *     to an embedded SSH server that runs commands on this machine.
+ *
+ *     Usage (the plugin and the Azkaban jars must be in the classpath):
+ *       groovy -cp "target/azkaban-groovy-plugins-<version>.jar:<azkaban_home>/lib/*" \
+ *              scripts/loadtest.groovy [options]
+ *
+ *********************************************************************************/
+
+def cli = new CliBuilder(usage: "loadtest.groovy [options]", header: 'Load test for Azkaban Groovy job types, options:')
+cli.t(args: 1, argName: "types", "Comma separated job types to test (Groovy,GroovyProcess,GroovyRemote), by default Groovy")
+cli.n(args: 1, argName: "jobs", "Number of jobs for each type, by default 100")
+cli.c(args: 1, argName: "concurrency", "Number of jobs running at the same time, by default 10")
+cli.s(args: 1, argName: "file", "Script executed by the jobs, by default a small CPU-bound script")
+cli.u("Make the script unique for each job (each job compiles new classes)")
+cli.D(args: 2, valueSeparator: '=', argName: 'property=value', "Additional job property")
+cli.k("Keep working directories")
+cli.h("Print this")
+def opts = cli.parse(args)
+if (!opts || opts.h) {
+    cli.usage()
+    System.exit(0)
+}
+
+def types = (opts.t ?: "Groovy").split(",")*.trim()
+int jobs = (opts.n ?: 100) as int
+int concurrency = (opts.c ?: 10) as int
+def script = opts.s ? new File(opts.s).getText("UTF-8") : '''
+    long sum = 0
+    for (int i = 0; i < 2000000; i++) sum += i % 7
+    def words = (1..2000).collect { "w" + (it % 100) }.countBy { it }
+    [result: sum.toString(), words: words.size().toString()]
+'''
+def extraProps = [:]
+if (opts.Ds)
+    for (int i = 0; i < opts.Ds.size(); i += 2)
+        extraProps[opts.Ds[i]] = opts.Ds[i + 1]
+
+def base = File.createTempDir("azkaban-loadtest", "")
+println "Working dirs in ${base.absolutePath}"
+
+// stand-ins for the runners of the executor
+def flowRunners = new ConcurrentHashMap<Integer, FlowRunner>()
+def jobRunners = new ConcurrentHashMap<String, JobRunner>()
+JobUtils.setRunnerLocator(new JobUtils.RunnerLocator() {
+    @Override
+    FlowRunner flowRunner(int execId) { flowRunners.get(execId) }
+
+    @Override
+    JobRunner jobRunner(int execId, String jobId) { jobRunners.get("$execId/$jobId".toString()) }
+})
+
+def stubRunners = { int execId, String jobId, Logger logger ->
+    def flow = Mockito.mock(ExecutableFlow)
+    Mockito.when(flow.getExecutionId()).thenReturn(execId)
+    Mockito.when(flow.getFlowId()).thenReturn("loadtest")
+    def flowRunner = Mockito.mock(FlowRunner)
+    Mockito.when(flowRunner.getExecutableFlow()).thenReturn(flow)
+
+    def node = Mockito.mock(ExecutableNode)
+    Mockito.when(node.getId()).thenReturn(jobId)
+    def jobRunner = Mockito.mock(JobRunner)
+    Mockito.when(jobRunner.getNode()).thenReturn(node)
+    Mockito.when(jobRunner.getLogger()).thenReturn(logger)
+
+    flowRunners.put(execId, flowRunner)
+    jobRunners.put("$execId/$jobId".toString(), jobRunner)
+}
+
+// stand-in for the remote host
+SshServer sshd = null
+if (types.contains("GroovyRemote")) {
+    sshd = SshServer.setUpDefaultServer()
+    sshd.port = new ServerSocket(0).withCloseable { it.localPort }
+    sshd.keyPairProvider = new SimpleGeneratorHostKeyProvider(new File(base, "hostkey.ser").absolutePath)
+    sshd.passwordAuthenticator = { username, password, session -> true } as PasswordAuthenticator
+    sshd.commandFactory = new ScpCommandFactory(new CommandFactory() {
+        @Override
+        Command createCommand(String command) {
+            new ProcessShellFactory(["/bin/sh", "-c", command] as String[]).create()
+        }
+    })
+    sshd.start()
+    println "SSH server listening on port ${sshd.port}"
+}
+
+// the job types run some of the checks of the executor, disabled here
+def sysProps = new Props()
+sysProps.put("execute.as.user", "false")
+sysProps.put("memCheck.enabled", "false")
+sysProps.put("plugin.dir", new File(base, "plugin").absolutePath)
+
+def execIds = new AtomicInteger(1)
+def createJob = { String type, int n ->
+    int execId = execIds.getAndIncrement()
+    String jobId = "${type.toLowerCase()}-$n"
+    def wd = new File(base, "$execId-$jobId")
+    wd.mkdirs()
+
+    def logger = Logger.getLogger("loadtest.$execId.$jobId")
+    logger.additivity = false
+    logger.addAppender(new NullAppender())
+    stubRunners(execId, jobId, logger)
+
+    def props = new Props()
+    props.put("type", type)
+    props.put("azkaban.flow.execid", execId.toString())
+    props.put("azkaban.flow.flowid", "loadtest")
+    props.put("azkaban.flow.projectname", "loadtest")
+    props.put("azkaban.job.id", jobId)
+    props.put("azkaban.memory.check", "false")
+    props.put("working.dir", wd.absolutePath)
+    props.put("groovy.command.1", opts.u ? "// job $execId\n$script" : script)
+    if (type == "GroovyRemote") {
+        props.put("groovy.remote.host", "localhost")
+        props.put("groovy.remote.port", sshd.port.toString())
+        props.put("groovy.remote.username", System.getProperty("user.name"))
+        props.put("groovy.remote.password", "loadtest")
+        props.put("groovy.remote.working.dir", new File(base, "remote-$execId").absolutePath)
+    }
+    extraProps.each { k, v -> props.put(k, v) }
+
+    switch (type) {
+        case "Groovy": return new GroovyJob(jobId, sysProps, props, logger)
+        case "GroovyProcess": return new GroovyProcessJob(jobId, sysProps, props, logger)
+        case "GroovyRemote": return new GroovyRemoteJob(jobId, sysProps, props, logger)
+        default: throw new IllegalArgumentException("Unknown job type: $type")
+    }
+}
+
+def threadBean = ManagementFactory.threadMXBean
+def classBean = ManagementFactory.classLoadingMXBean
+def metaspace = {
+    ManagementFactory.memoryPoolMXBeans.findAll {
+        it.type == MemoryType.NON_HEAP && (it.name.contains("Metaspace") || it.name.contains("Perm Gen"))
+    }.sum(0L) { it.usage.used }
+}
+def percentile = { List<Long> sorted, double p ->
+    sorted ? sorted[Math.max(0, Math.min(sorted.size() - 1, (int) Math.ceil(p / 100 * sorted.size()) - 1))] : 0
+}
+
+println()
+printf("%-15s %6s %6s %9s %9s %9s %9s %9s %8s %8s %10s %10s%n", "type", "jobs", "failed", "jobs/s",
+        "p50 ms", "p90 ms", "p99 ms", "max ms", "threads", "peak", "classes", "metaspace")
+
+types.each { type ->
+    System.gc()
+    def metaspaceBefore = metaspace()
+    def classesBefore = classBean.loadedClassCount
+    threadBean.resetPeakThreadCount()
+
+    def latencies = new ConcurrentLinkedQueue<Long>()
+    def failures = new ConcurrentLinkedQueue<Throwable>()
+    def pool = Executors.newFixedThreadPool(concurrency)
+    long start = System.nanoTime()
+    (1..jobs).each { n ->
+        pool.submit {
+            Job job = createJob(type, n)
+            long jobStart = System.nanoTime()
+            try {
+                job.run()
+            } catch (Throwable t) {
+                failures.add(t)
+            } finally {
+                latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - jobStart))
+            }
+        }
+    }
+    pool.shutdown()
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS)
+    double seconds = (System.nanoTime() - start) / 1e9
+
+    System.gc()
+    def sorted = latencies.toList().sort()
+    printf("%-15s %6d %6d %9.1f %9d %9d %9d %9d %8d %8d %+10d %+9.1fM%n", type, jobs, failures.size(), jobs / seconds,
+            percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted ? sorted[-1] : 0,
+            threadBean.threadCount, threadBean.peakThreadCount,
+            classBean.loadedClassCount - classesBefore, (metaspace() - metaspaceBefore) / (1024 * 1024))
+    if (failures)
+        println "    first failure: ${failures.peek()}"
+}
+
+println()
+println "Plugin metrics:"
+Metrics.snapshot().each { println "    ${it.key} = ${it.value}" }
+
+sshd?.stop(true)
+if (!opts.k)
+    FileUtils.deleteQuietly(base)
+System.exit(0)
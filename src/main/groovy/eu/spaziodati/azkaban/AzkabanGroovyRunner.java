@@ -4,11 +4,15 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import groovy.lang.Binding;
 import groovy.util.GroovyScriptEngine;
-import org.apache.commons.io.FileUtils;
+import org.codehaus.groovy.runtime.InvokerHelper;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -32,8 +36,19 @@ public class AzkabanGroovyRunner {
     // if true, this job will forward incoming parameters as job's output
     // to automatically propagate all properties to the next step of the flow
     public static final String FORWARD_PARAMETERS = "groovy.forwardParameters";
-
-    public static Properties params = new Properties();
+    // if true, progress, heartbeats and the output of the script are printed on stdout
+    // as marker lines, so that GroovyRemoteJob can follow the execution while it runs
+    public static final String STREAM = "groovy.remote.stream";
+    // interval between two heartbeats, in seconds
+    public static final String HEARTBEAT = "groovy.remote.heartbeat";
+    public static final String STREAM_MARKER = "@@azkaban-groovy:";
+    // resources used by the runner, written next to the output file
+    public static final String STATS_SUFFIX = ".stats";
+    public static final String PEAK_HEAP = "peak.heap";
+    // the output of the script alone (without the forwarded parameters), written next to the output file
+    public static final String SCRIPT_OUTPUT_SUFFIX = ".script";
+
+    public static ResolvingProperties params = new ResolvingProperties();
 
     public static void main (String[] args) throws Exception {
 
@@ -58,6 +73,9 @@ public class AzkabanGroovyRunner {
 
         String workdir = params.getProperty(WORKING_DIR, "./");
 
+        boolean stream = getBooleanParam(STREAM, false);
+        writeStatsOnExit(outputfile + STATS_SUFFIX, stream);
+
         Map<String, String> commandsmap = getMapParam(GROOVY_COMMAND);
         String scriptfile;
         if (commandsmap.size() > 0)
@@ -65,9 +83,6 @@ public class AzkabanGroovyRunner {
         else
             scriptfile = getStringParam(GROOVY_SCRIPT);
 
-        if (scriptfile == null)
-            scriptfile = createScriptFromCommand(commandsmap, new File(workdir), System.out);
-
 
         String classpath = params.getProperty(GROOVY_CLASSPATH);
         String[] urls = is(classpath) ? classpath.split(":") : new String[0];
@@ -78,23 +93,55 @@ public class AzkabanGroovyRunner {
                 urls[i] = new File(workdir, urls[i]).getAbsolutePath()+"/";
 
 
+        AtomicReference<Double> progress = new AtomicReference<>(0.0);
+        ProgressStreamer streamer = null;
+        if (stream)
+            streamer = startHeartbeat(Integer.parseInt(params.getProperty(HEARTBEAT, "10")), progress);
+
         GroovyScriptEngine engine = new GroovyScriptEngine(urls);
+        engine.setConfig(ScriptCompilerConfig.create(params, new File(workdir), urls));
+        Class<?> commandClass = null;
+        if (scriptfile == null)
+            commandClass = CommandScript.load(commandsmap, urls, new File(workdir), engine, System.out);
+
         Binding vars = new Binding();
         vars.setVariable("config", params);
+        vars.setVariable("progress", progress);
         Map allproperties = new HashMap();
         allproperties.putAll(System.getProperties());
         allproperties.putAll(params);
         GroovyResolversConfig.fromMap(allproperties);
 
-        System.out.println("Running script: "+scriptfile);
+        // the JFR recording is started by the JVM options, see GroovyProcessJob
+        Profiler profiler = null;
+        if (getBooleanParam(Profiler.PROFILE, false)) {
+            profiler = new Profiler(Long.parseLong(params.getProperty(Profiler.INTERVAL, "20")));
+            profiler.start("runner");
+        }
+
+        Object result;
+        if (commandClass != null) {
+            System.out.println("Running commands");
+            result = InvokerHelper.createScript(commandClass, vars).run();
+        } else {
+            System.out.println("Running script: "+scriptfile);
+            result = engine.run(scriptfile, vars);
+        }
 
-        Object result = engine.run(scriptfile, vars);
+        if (profiler != null) {
+            profiler.stop();
+            System.out.println(profiler.summary(Integer.parseInt(params.getProperty(Profiler.TOP, "15"))));
+        }
 
         Map jobOutput = new HashMap();
         if (getBooleanParam(FORWARD_PARAMETERS, false)) {
+            // raw values, so that references to files are forwarded as they are
+            Map<String, String> raw = new HashMap<>();
             for (String key : params.stringPropertyNames())
-                if (!isReservedKey(key))
-                    jobOutput.put(key, params.getProperty(key));
+                raw.put(key, params.getRawProperty(key));
+            ParameterForwarding forwarding = new ParameterForwarding(raw);
+            forwarding.forward(raw.keySet(), raw, jobOutput);
+            System.out.println(forwarding.summary());
         }
         
         boolean checkOutput = getBooleanParam(CHECK_OUTPUT, false);
@@ -105,7 +152,34 @@ public class AzkabanGroovyRunner {
             jobOutput.putAll((Map) result);
         }
 
+        // long strings are written to files, the output contains the references
+        int maxValueSize = Integer.parseInt(params.getProperty(OutputReference.MAX_VALUE_SIZE,
+                Integer.toString(OutputReference.DEFAULT_MAX_VALUE_SIZE)));
+        String jobId = params.getProperty("azkaban.job.id", "job");
+        for (Object o : jobOutput.entrySet()) {
+            Map.Entry entry = (Map.Entry) o;
+            if (entry.getValue() instanceof CharSequence) {
+                String value = entry.getValue().toString();
+                String spilled = OutputReference.spill(jobId, String.valueOf(entry.getKey()), value, new File(workdir), maxValueSize);
+                if (spilled != value)
+                    System.out.println("Output " + entry.getKey() + " is " + value.length() + " chars long, written to " + spilled);
+                entry.setValue(spilled);
+            }
+        }
+
         Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+        if (getBooleanParam(FORWARD_PARAMETERS, false)) {
+            Map scriptOutput = new HashMap();
+            if (result instanceof Map)
+                for (Object key : ((Map) result).keySet())
+                    scriptOutput.put(key, jobOutput.get(key));
+            try (PrintWriter writer = new PrintWriter(outputfile + SCRIPT_OUTPUT_SUFFIX, "UTF-8")) {
+                gson.toJson(scriptOutput, writer);
+            } catch (Exception e) {
+                throw new RuntimeException("Script execution succeded, but I was unable to dump result: " + e.getMessage(), e);
+            }
+        }
+
         try (PrintWriter writer = new PrintWriter(outputfile, "UTF-8")) {
             gson.toJson(jobOutput, writer);
 
@@ -114,6 +188,11 @@ public class AzkabanGroovyRunner {
             gson.toJson(jobOutput, System.out);
             System.out.println("\n=======================");
 
+            if (stream) {
+                streamer.check();
+                emit("output", new Gson().toJson(jobOutput));
+                emit("done", "");
+            }
 
         } catch (Exception e) {
             throw new RuntimeException("Script execution succeded, but I was unable to dump result: " + e.getMessage(), e);
@@ -122,6 +201,129 @@ public class AzkabanGroovyRunner {
         System.exit(0);
     }
 
+    // written on exit, so that the job type gets them also when the script fails
+    static void writeStatsOnExit(final String statsfile, final boolean stream) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long peak = peakHeap();
+                if (stream)
+                    emit("stats", Long.toString(peak));
+                try (PrintWriter writer = new PrintWriter(statsfile, "UTF-8")) {
+                    writer.println(PEAK_HEAP + "=" + peak);
+                } catch (Exception e) {
+                    System.err.println("Unable to write " + statsfile + ": " + e.getMessage());
+                }
+            }
+        }));
+    }
+
+    // sum of the peaks of the heap pools, an upper bound of the actual peak
+    static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    static synchronized void emit(String type, String payload) {
+        System.out.println(STREAM_MARKER + type + " " + payload);
+        System.out.flush();
+    }
+
+    static ProgressStreamer startHeartbeat(int seconds, AtomicReference<Double> progress) {
+        ProgressStreamer streamer = new ProgressStreamer(progress, seconds * 1000L);
+        Thread heartbeat = new Thread(streamer, "GroovyRunnerHeartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+        return streamer;
+    }
+
+    /**
+     * The config binding: values written in files by previous jobs (see OutputReference)
+     * are loaded when they are read
+     */
+    @SuppressWarnings("serial")
+    public static class ResolvingProperties extends Properties {
+
+        private final Map<Object, String> resolved = new HashMap<>();
+
+        @Override
+        public synchronized Object get(Object key) {
+            Object value = super.get(key);
+            if (!(value instanceof String) || !OutputReference.isReference((String) value))
+                return value;
+
+            String content = resolved.get(key);
+            if (content == null) {
+                content = OutputReference.resolve((String) value, new File(getRawProperty(WORKING_DIR, "./")));
+                resolved.put(key, content);
+            }
+            return content;
+        }
+
+        @Override
+        public String getProperty(String key) {
+            Object value = get(key);
+            return value instanceof String ? (String) value : super.getProperty(key);
+        }
+
+        public String getRawProperty(String key) {
+            Object value = super.get(key);
+            return value instanceof String ? (String) value : null;
+        }
+
+        public String getRawProperty(String key, String def) {
+            String value = getRawProperty(key);
+            return value == null ? def : value;
+        }
+    }
+
+    /**
+     * Sends a heartbeat every interval and the progress as soon as it changes: the progress
+     * binding is checked often, so any way of updating it (set, compareAndSet, lazySet...)
+     * is streamed to the job
+     */
+    static class ProgressStreamer implements Runnable {
+        static final long CHECK_INTERVAL = 500;
+
+        private final AtomicReference<Double> progress;
+        private final long heartbeatMs;
+        private Double sent = null;
+
+        ProgressStreamer(AtomicReference<Double> progress, long heartbeatMs) {
+            this.progress = progress;
+            this.heartbeatMs = heartbeatMs;
+        }
+
+        @Override
+        public void run() {
+            long lastHeartbeat = 0;
+            try {
+                while (true) {
+                    if (System.currentTimeMillis() - lastHeartbeat >= heartbeatMs) {
+                        emit("heartbeat", Long.toString(System.currentTimeMillis()));
+                        lastHeartbeat = System.currentTimeMillis();
+                    }
+                    check();
+                    Thread.sleep(CHECK_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                // exiting
+            }
+        }
+
+        // sends the progress if it has changed since the last time
+        synchronized void check() {
+            Double value = progress.get();
+            if (value != null && !value.equals(sent)) {
+                emit("progress", String.valueOf(value));
+                sent = value;
+            }
+        }
+    }
+
     static String getStringParam(String key) throws Exception {
         String val = params.getProperty(key);
         if (not(val)) throw new RuntimeException ("No property with key ["+key+"] has been found");
@@ -149,29 +351,6 @@ public class AzkabanGroovyRunner {
 
 
     public static boolean isReservedKey(String key) {
-        return key.startsWith("azkaban.") && key.equals("working.dir") && key.startsWith("groovy.");
-    }
-
-    public static String createScriptFromCommand(Map<String, String> commandmap, File wd, Appendable log)
-            throws IOException {
-        List<Map.Entry<String, String>> entrylist = new ArrayList<>(commandmap.entrySet());
-        Collections.sort(entrylist, new Comparator<Map.Entry<String, String>>() {
-            @Override
-            public int compare(Map.Entry<String, String> o1, Map.Entry<String, String> o2) {
-                return o1.getKey().compareTo(o2.getKey());
-            }
-        });
-        String commandstring = "";
-        List<String> commands = new ArrayList<>();
-        for (Map.Entry<String, String> entry : entrylist) {
-            commands.add(entry.getValue());
-            commandstring += entry.getValue() +'\n';
-        }
-
-        log.append("Using command list:\n" + commandstring);
-
-        File fscript = new File(wd, System.currentTimeMillis()+".groovy");
-        FileUtils.writeLines(fscript, "UTF-8", commands);
-        return fscript.getName();
+        return key.startsWith("azkaban.") || key.equals("working.dir") || key.startsWith("groovy.");
     }
 }
@@ -0,0 +1,182 @@
+package eu.spaziodati.azkaban;
+
+import groovy.util.GroovyScriptEngine;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.codehaus.groovy.tools.GroovyClass;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Scripts defined through groovy.command.* properties.
+ * Commands are compiled in memory (nothing is written in the working dir), the name of
+ * the script class is derived from the hash of the commands. The bytecode is cached, so
+ * the same commands (with the same classpath sources and compiler options) are compiled only
+ * once per JVM; each run defines the classes of the commands in its own loader, child of the
+ * loader of the script engine (that loads the classpath classes), so cached entries don't keep
+ * any engine alive.
+ * The classpath is part of the key relative to the working dir, that changes at each
+ * execution, so the compiled commands are reused across executions of the flows.
+ */
+public class CommandScript {
+
+    static final int MAX_CACHED = 256;
+
+    @SuppressWarnings("serial")
+    private static final Map<String, Map<String, byte[]>> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String, Map<String, byte[]>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Map<String, byte[]>> eldest) {
+                    return size() > MAX_CACHED;
+                }
+            });
+
+    /**
+     * @return the text of the script: commands sorted by key, one per line
+     */
+    public static String text(Map<String, String> commandmap) {
+        List<Map.Entry<String, String>> entrylist = new ArrayList<>(commandmap.entrySet());
+        Collections.sort(entrylist, new Comparator<Map.Entry<String, String>>() {
+            @Override
+            public int compare(Map.Entry<String, String> o1, Map.Entry<String, String> o2) {
+                return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        StringBuilder commandstring = new StringBuilder();
+        for (Map.Entry<String, String> entry : entrylist)
+            commandstring.append(entry.getValue()).append('\n');
+        return commandstring.toString();
+    }
+
+    public static Class<?> load(Map<String, String> commandmap, String[] classpath, File workdir, GroovyScriptEngine engine,
+                                Appendable log) throws IOException {
+        String text = text(commandmap);
+        log.append("Using command list:\n" + text);
+
+        String className = "GroovyCommand_" + sha1(text);
+        String key = sha1(text + "\n" + describe(classpath, workdir) + "\n" + describe(engine.getConfig()));
+
+        Map<String, byte[]> classes = cache.get(key);
+        if (classes == null) {
+            log.append("Compiling commands as " + className + "\n");
+            classes = compile(className, text, engine);
+            cache.put(key, classes);
+        } else
+            log.append("Using compiled commands " + className + "\n");
+
+        try {
+            return new BytecodeLoader(engine.getGroovyClassLoader(), classes).loadClass(className);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to load compiled commands: " + e.getMessage(), e);
+        }
+    }
+
+    // the classpath folders (relative to the working dir) and the hash of the names, sizes and
+    // modification times of the sources they contain. The working dir of each execution is linked
+    // to the files of the project version, so the modification times don't change between executions
+    static String describe(String[] classpath, File workdir) {
+        URI base = workdir.getAbsoluteFile().toURI().normalize();
+        MessageDigest digest = digest("SHA-1");
+        StringBuilder description = new StringBuilder();
+        for (String path : classpath) {
+            File dir = new File(path).getAbsoluteFile();
+            description.append(base.relativize(dir.toURI().normalize()).getPath()).append(':');
+            List<File> sources = new ArrayList<>();
+            listSources(dir, sources);
+            Collections.sort(sources);
+            for (File source : sources) {
+                String entry = dir.toURI().relativize(source.toURI()).getPath() + ":" + source.length() + ":" + source.lastModified() + "\n";
+                digest.update(entry.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return description.append(hex(digest.digest())).toString();
+    }
+
+    static void listSources(File dir, List<File> sources) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            if (f.isDirectory())
+                listSources(f, sources);
+            else if (f.getName().endsWith(".groovy"))
+                sources.add(f);
+        }
+    }
+
+    // the compiler options that affect the generated bytecode: customizers are opaque, so
+    // the ones added by a configuration script are identified by the content of the script
+    static String describe(CompilerConfiguration config) {
+        StringBuilder description = new StringBuilder(config.getTargetBytecode());
+        description.append(new TreeMap<>(config.getOptimizationOptions()));
+        for (CompilationCustomizer customizer : config.getCompilationCustomizers())
+            description.append(' ').append(customizer.getClass().getName());
+        if (config instanceof ScriptCompilerConfig.Configuration)
+            description.append(' ').append(((ScriptCompilerConfig.Configuration) config).getConfigScript());
+        return description.toString();
+    }
+
+    // The unit also compiles the classpath sources referenced by the commands: only the classes of
+    // the commands (the script class, its closures and inner classes) are kept, the others are loaded
+    // from the engine loader, so that each class of the classpath has a single definition
+    static Map<String, byte[]> compile(String className, String text, GroovyScriptEngine engine) {
+        CompilationUnit unit = new CompilationUnit(engine.getConfig(), null, engine.getGroovyClassLoader());
+        unit.addSource(className + ".groovy", text);
+        unit.compile(Phases.CLASS_GENERATION);
+
+        Map<String, byte[]> classes = new HashMap<>();
+        for (Object o : unit.getClasses()) {
+            GroovyClass gc = (GroovyClass) o;
+            if (gc.getName().equals(className) || gc.getName().startsWith(className + "$"))
+                classes.put(gc.getName(), gc.getBytes());
+        }
+        return classes;
+    }
+
+    static String sha1(String text) {
+        return sha1(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String sha1(byte[] bytes) {
+        return hex(digest("SHA-1").digest(bytes));
+    }
+
+    static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    static class BytecodeLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        BytecodeLoader(ClassLoader parent, Map<String, byte[]> classes) {
+            super(parent);
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) throw new ClassNotFoundException(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
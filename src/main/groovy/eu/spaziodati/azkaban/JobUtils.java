@@ -7,7 +7,6 @@ import azkaban.execapp.FlowRunnerManager;
 import azkaban.execapp.JobRunner;
 import azkaban.executor.Status;
 import azkaban.utils.Props;
-import azkaban.utils.PropsUtils;
 import groovy.util.Eval;
 import org.apache.log4j.Logger;
 
@@ -46,7 +45,7 @@ public class JobUtils {
             if (isTrue(raw, props, log, jobId)) {
                 log.info("NOOP for this job: " + NOOP_PROP + "=" + raw);
                 if (props.getBoolean(FORWARD_PARAMETERS, false))
-                    return forwardParameters(props);
+                    return forwardParameters(props, log);
                 else
                     return new Props();
             }
@@ -59,16 +58,68 @@ public class JobUtils {
         
     }
     
-    public static Props forwardParameters(Props jobProps) {
+    public static Props forwardParameters(Props jobProps, Logger log) {
+
+        ParameterForwarding forwarding = new ParameterForwarding(new PropsMap(jobProps), unchangedParameters(jobProps, log));
+        Map<String, String> forwarded = new HashMap<>();
+        // values are read from jobProps, so that references to files are forwarded as they are
+        Map<String, String> values = new HashMap<>();
+        for (String k : jobProps.getKeySet())
+            values.put(k, jobProps.get(k));
+        forwarding.forward(values.keySet(), values, forwarded);
+
+        log.info(forwarding.summary());
+        Metrics.inc("groovy.forward.count");
+        Metrics.add("groovy.forward.parameters", forwarding.getForwarded());
+        Metrics.add("groovy.forward.chars", forwarding.getBytes());
+        return new Props(null, forwarded);
 
-        Props newprops = new Props();
-        for (String k : jobProps.getKeySet()) {
-            if (!AzkabanGroovyRunner.isReservedKey(k)) {
-                newprops.put(k, jobProps.get(k));
-            }
+    }
+
+    /**
+     * @return the output of the script, preceded by the forwarded parameters if groovy.forwardParameters
+     * is true (the output of the script overrides them)
+     */
+    public static Props withForwardedParameters(Props output, Props jobProps, Logger log) {
+        if (!jobProps.getBoolean(FORWARD_PARAMETERS, false))
+            return output;
+        Props result = forwardParameters(jobProps, log);
+        for (String k : output.getKeySet())
+            result.put(k, output.get(k));
+        return result;
+    }
+
+    /**
+     * In delta mode (groovy.forwardParameters.delta=true) these are the keys that have the same value
+     * in the shared properties of the flow (the .properties files), which all the jobs already receive
+     * @return the keys that should not be forwarded, or null if delta mode is disabled
+     */
+    public static Set<String> unchangedParameters(Props jobProps, Logger log) {
+        if (!jobProps.getBoolean(ParameterForwarding.DELTA, false))
+            return null;
+
+        Props shared = null;
+        try {
+            FlowRunner flowRunner = myFlowRunner(jobProps.getInt("azkaban.flow.execid"));
+            JobRunner jobRunner = myJobRunner(jobProps.getInt("azkaban.flow.execid"), jobProps.getString("azkaban.job.id"));
+            Map<String, Props> sharedProps = Reflection.get(flowRunner, "sharedProps");
+            if (jobRunner != null && jobRunner.getNode().getPropsSource() != null)
+                shared = sharedProps.get(jobRunner.getNode().getPropsSource());
+        } catch (Exception e) {
+            log.warn("Unable to get shared properties of the flow: " + e.getMessage());
+        }
+        if (shared == null) {
+            log.warn("No shared properties found, delta mode has no effect");
+            return null;
         }
-        return newprops;
 
+        Set<String> unchanged = new HashSet<>();
+        for (String k : shared.getKeySet()) {
+            String value = jobProps.get(k);
+            if (value != null && value.equals(shared.get(k)))
+                unchanged.add(k);
+        }
+        return unchanged;
     }
 
     static boolean isTrue(String raw, Props props, Logger log, String jobname) {
@@ -89,8 +140,7 @@ public class JobUtils {
 
         Object result = null;
         try {
-            Map cfg = PropsUtils.toStringMap(props, false);
-            result = Eval.me("config", cfg, raw);
+            result = Eval.me("config", new PropsMap(props), raw);
             log.info("Evaluation using code...");
         } catch (Exception e) {}
 
@@ -114,24 +164,52 @@ public class JobUtils {
                 "t".equalsIgnoreCase(raw);
     }
 
-    public static FlowRunner myFlowRunner(int execid) {
-        AzkabanExecutorServer server = Reflection.get(AzkabanExecutorServer.class, "app");
-        FlowRunnerManager flowmanager = server.getFlowRunnerManager();
-        Map<Integer,FlowRunner> runners = Reflection.get(flowmanager, "runningFlows");
-        if (runners.containsKey(execid))
-            return runners.get(execid);
-        else
+    /**
+     * Finds the runners of the executor for a job. The default implementation reads them
+     * from the running executor server; a different one can be installed where there is
+     * no executor, eg. by the load test harness (see scripts/loadtest.groovy)
+     */
+    public interface RunnerLocator {
+        FlowRunner flowRunner(int execId);
+        JobRunner jobRunner(int execId, String jobId);
+    }
+
+    public static final RunnerLocator EXECUTOR_LOCATOR = new RunnerLocator() {
+        @Override
+        public FlowRunner flowRunner(int execid) {
+            AzkabanExecutorServer server = Reflection.get(AzkabanExecutorServer.class, "app");
+            FlowRunnerManager flowmanager = server.getFlowRunnerManager();
+            Map<Integer,FlowRunner> runners = Reflection.get(flowmanager, "runningFlows");
+            if (runners.containsKey(execid))
+                return runners.get(execid);
+            else
+                return null;
+        }
+
+        @Override
+        public JobRunner jobRunner(int execId, String jobId) {
+            FlowRunner runner = flowRunner(execId);
+            Set<JobRunner> jobRunners = Reflection.get(runner, "activeJobRunners");
+            for (JobRunner jr : jobRunners) {
+                String jobId2 = Reflection.get(jr, "jobId");
+                if (jobId.equals(jobId2))
+                    return jr;
+            }
             return null;
+        }
+    };
+
+    private static volatile RunnerLocator locator = EXECUTOR_LOCATOR;
+
+    public static void setRunnerLocator(RunnerLocator runnerLocator) {
+        locator = runnerLocator != null ? runnerLocator : EXECUTOR_LOCATOR;
+    }
+
+    public static FlowRunner myFlowRunner(int execid) {
+        return locator.flowRunner(execid);
     }
     public static JobRunner myJobRunner(int execId, String jobId) {
-        FlowRunner runner = myFlowRunner(execId);
-        Set<JobRunner> jobRunners = Reflection.get(runner, "activeJobRunners");
-        for (JobRunner jr : jobRunners) {
-            String jobId2 = Reflection.get(jr, "jobId");
-            if (jobId.equals(jobId2))
-                return jr;
-        }
-        return null;
+        return locator.jobRunner(execId, jobId);
     }
 
 }
@@ -0,0 +1,88 @@
+package eu.spaziodati.azkaban;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plugin-wide counters and gauges, shared by all the jobs running in the executor.
+ * They are published through JMX with name eu.spaziodati.azkaban:type=GroovyPlugin,
+ * so they can be read from the JMX page of the executor or from any JMX client.
+ */
+public class Metrics {
+
+    public static final String OBJECT_NAME = "eu.spaziodati.azkaban:type=GroovyPlugin";
+
+    public interface Gauge {
+        Object value();
+    }
+
+    public interface GroovyPluginMXBean {
+        Map<String, String> getMetrics();
+    }
+
+    private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(new GroovyPluginMXBean() {
+                @Override
+                public Map<String, String> getMetrics() {
+                    return snapshot();
+                }
+            }, name);
+        } catch (Exception e) {
+            // metrics are still available through snapshot()
+        }
+    }
+
+    public static AtomicLong counter(String name) {
+        AtomicLong c = counters.get(name);
+        if (c == null) {
+            AtomicLong newcounter = new AtomicLong();
+            c = counters.putIfAbsent(name, newcounter);
+            if (c == null) c = newcounter;
+        }
+        return c;
+    }
+
+    public static long add(String name, long delta) {
+        return counter(name).addAndGet(delta);
+    }
+
+    public static long inc(String name) {
+        return add(name, 1);
+    }
+
+    public static void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public static void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    public static Map<String, String> snapshot() {
+        Map<String, String> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> e : counters.entrySet())
+            snapshot.put(e.getKey(), Long.toString(e.getValue().get()));
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            try {
+                snapshot.put(e.getKey(), String.valueOf(e.getValue().value()));
+            } catch (Exception ex) {
+                snapshot.put(e.getKey(), "error: " + ex);
+            }
+        }
+        return snapshot;
+    }
+}
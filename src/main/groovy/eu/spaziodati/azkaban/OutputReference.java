@@ -0,0 +1,51 @@
+package eu.spaziodati.azkaban;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Output values larger than groovy.output.maxValueSize are not passed to the next
+ * jobs as they are: they are written to a file in the working directory and the
+ * output contains a reference to that file (groovy-ref:filename). References are
+ * resolved when the value is read through config (or props, for Groovy jobs).
+ */
+public class OutputReference {
+
+    public static final String PREFIX = "groovy-ref:";
+    // max length of an output value, if longer it is written to a file. If less than 1, no limit
+    public static final String MAX_VALUE_SIZE = "groovy.output.maxValueSize";
+    public static final int DEFAULT_MAX_VALUE_SIZE = 64 * 1024;
+
+    public static boolean isReference(String value) {
+        return value != null && value.startsWith(PREFIX);
+    }
+
+    /**
+     * @return the value itself, or a reference to the file where it has been written if too long
+     */
+    public static String spill(String jobId, String key, String value, File workdir, int maxSize) throws IOException {
+        if (value == null || maxSize <= 0 || value.length() <= maxSize)
+            return value;
+
+        String name = "_output." + jobId + "." + key.replaceAll("[^A-Za-z0-9._-]", "_") + "."
+                + Integer.toHexString(key.hashCode()) + ".txt";
+        Files.write(new File(workdir, name).toPath(), value.getBytes(StandardCharsets.UTF_8));
+        return PREFIX + name;
+    }
+
+    /**
+     * @return the content of the referenced file, or the value itself if it is not a reference
+     */
+    public static String resolve(String value, File workdir) {
+        if (!isReference(value))
+            return value;
+        File file = new File(workdir, value.substring(PREFIX.length()));
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read output value from " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+    }
+}
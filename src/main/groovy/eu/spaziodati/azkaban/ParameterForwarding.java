@@ -0,0 +1,107 @@
+package eu.spaziodati.azkaban;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the input parameters forwarded to the next jobs when groovy.forwardParameters is true.
+ * Shared by the Groovy job and the runner of GroovyProcess/GroovyRemote jobs, so it must not
+ * depend on Azkaban classes.
+ */
+public class ParameterForwarding {
+
+    // only keys matching this regex are forwarded
+    public static final String INCLUDE = "groovy.forwardParameters.include";
+    // keys matching this regex are never forwarded
+    public static final String EXCLUDE = "groovy.forwardParameters.exclude";
+    // if true, keys having the same value every job of the flow already receives are not forwarded
+    public static final String DELTA = "groovy.forwardParameters.delta";
+    // keys not forwarded in delta mode, computed by the job type (comma separated)
+    public static final String UNCHANGED = "groovy.forwardParameters.unchanged";
+
+    private final Pattern include;
+    private final Pattern exclude;
+    private final Set<String> unchanged;
+
+    private int forwarded = 0;
+    private int skipped = 0;
+    private long bytes = 0;
+
+    public ParameterForwarding(Map<?, ?> config, Set<String> unchanged) {
+        this.include = pattern(config.get(INCLUDE));
+        this.exclude = pattern(config.get(EXCLUDE));
+        this.unchanged = unchanged != null ? unchanged : Collections.<String>emptySet();
+    }
+
+    /**
+     * Reads the unchanged keys from the configuration, as passed to the runner
+     */
+    public ParameterForwarding(Map<?, ?> config) {
+        this(config, split(config.get(UNCHANGED)));
+    }
+
+    public boolean accept(String key) {
+        return !AzkabanGroovyRunner.isReservedKey(key)
+                && !unchanged.contains(key)
+                && (include == null || include.matcher(key).matches())
+                && (exclude == null || !exclude.matcher(key).matches());
+    }
+
+    /**
+     * Copies the accepted keys in the output, updating the stats
+     */
+    public void forward(Collection<String> keys, Map<?, ?> values, Map<String, String> output) {
+        for (String key : keys) {
+            if (!accept(key)) {
+                skipped++;
+                continue;
+            }
+            Object value = values.get(key);
+            if (value == null)
+                continue;
+            output.put(key, value.toString());
+            forwarded++;
+            bytes += key.length() + value.toString().length();
+        }
+    }
+
+    public int getForwarded() {
+        return forwarded;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public String summary() {
+        return "Forwarded " + forwarded + " parameters (" + bytes + " chars), skipped " + skipped;
+    }
+
+    public static String join(Collection<String> keys) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(key);
+        }
+        return sb.toString();
+    }
+
+    static Set<String> split(Object value) {
+        Set<String> keys = new HashSet<>();
+        if (value != null)
+            for (String key : value.toString().split(","))
+                if (key.trim().length() > 0)
+                    keys.add(key.trim());
+        return keys;
+    }
+
+    static Pattern pattern(Object regex) {
+        if (regex == null || regex.toString().trim().length() == 0)
+            return null;
+        return Pattern.compile(regex.toString().trim());
+    }
+}
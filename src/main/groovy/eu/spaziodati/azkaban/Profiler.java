@@ -0,0 +1,175 @@
+package eu.spaziodati.azkaban;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Profiling of a script execution (groovy.profile=true):
+ *  (a) a JDK Flight Recorder recording, written in the working dir
+ *  (b) a sampler of the stacks of the script threads, used to print a short
+ *  summary of the hot methods in the job log
+ * Both are best effort: if JFR is not available in the JVM, only the summary is produced.
+ */
+public class Profiler {
+
+    public static final String PROFILE = "groovy.profile";
+    // interval between two samples of the stacks, in milliseconds
+    public static final String INTERVAL = "groovy.profile.interval";
+    // number of methods listed in the summary
+    public static final String TOP = "groovy.profile.top";
+
+    static final String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+
+    private final long interval;
+    private final Map<String, int[]> self = new HashMap<>();
+    private final Map<String, int[]> total = new HashMap<>();
+    private int samples = 0;
+    private volatile boolean running = false;
+    private Thread sampler;
+    private String recording;
+
+    public Profiler(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * File name of the recording in the working dir
+     */
+    public static String recordingFile(String jobId) {
+        return "_profile." + jobId + ".jfr";
+    }
+
+    /**
+     * Options for the JVM of GroovyProcess/GroovyRemote jobs: the recording starts with the JVM
+     * and it is written on exit. Unrecognized options are ignored by JVMs without JFR
+     */
+    public static String jvmArguments(String file) {
+        return "-XX:+IgnoreUnrecognizedVMOptions -XX:+UnlockCommercialFeatures -XX:+FlightRecorder "
+                + "-XX:StartFlightRecording=name=groovy,dumponexit=true,filename=" + file;
+    }
+
+    /**
+     * The threads that are sampled, by default all the threads of the JVM
+     */
+    protected Collection<Thread> threads() {
+        return Thread.getAllStackTraces().keySet();
+    }
+
+    public void start(String name) {
+        running = true;
+        sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    sample();
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "GroovyProfiler-" + name);
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (sampler != null)
+            sampler.interrupt();
+    }
+
+    synchronized void sample() {
+        for (Thread t : threads()) {
+            if (t == Thread.currentThread() || t.getState() != Thread.State.RUNNABLE)
+                continue;
+            StackTraceElement[] stack = t.getStackTrace();
+            if (stack.length == 0)
+                continue;
+            samples++;
+            increment(self, method(stack[0]));
+            Set<String> seen = new HashSet<>();
+            for (StackTraceElement e : stack)
+                if (seen.add(method(e)))
+                    increment(total, method(e));
+        }
+    }
+
+    /**
+     * @return the methods with the most samples on top of the stack
+     */
+    public synchronized String summary(int top) {
+        if (samples == 0)
+            return "Hot methods: no samples collected";
+
+        List<Map.Entry<String, int[]>> entries = new ArrayList<>(self.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>() {
+            @Override
+            public int compare(Map.Entry<String, int[]> o1, Map.Entry<String, int[]> o2) {
+                return Integer.compare(o2.getValue()[0], o1.getValue()[0]);
+            }
+        });
+
+        StringBuilder sb = new StringBuilder("Hot methods (" + samples + " samples, every " + interval + "ms):\n");
+        sb.append(String.format("  %7s %7s  %s%n", "self", "total", "method"));
+        for (Map.Entry<String, int[]> e : entries.subList(0, Math.min(top, entries.size()))) {
+            int[] inclusive = total.get(e.getKey());
+            sb.append(String.format("  %6.1f%% %6.1f%%  %s%n",
+                    100.0 * e.getValue()[0] / samples,
+                    inclusive != null ? 100.0 * inclusive[0] / samples : 0.0,
+                    e.getKey()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts a JFR recording in this JVM through the DiagnosticCommand MBean
+     * @return null if the recording was started, otherwise the reason it was not
+     */
+    public String startRecording(String name) {
+        try {
+            jfr("jfrStart", "name=" + name);
+            recording = name;
+            return null;
+        } catch (Exception e) {
+            return e.getCause() != null ? e.getCause().toString() : e.toString();
+        }
+    }
+
+    /**
+     * Stops the recording, writing it in the given file
+     * @return null if the recording was written, otherwise the reason it was not
+     */
+    public String stopRecording(String file) {
+        if (recording == null)
+            return "no recording";
+        try {
+            jfr("jfrStop", "name=" + recording, "filename=" + file);
+            return null;
+        } catch (Exception e) {
+            return e.getCause() != null ? e.getCause().toString() : e.toString();
+        } finally {
+            recording = null;
+        }
+    }
+
+    static Object jfr(String operation, String... args) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        return server.invoke(new ObjectName(DIAGNOSTIC_COMMAND), operation,
+                new Object[]{args}, new String[]{String[].class.getName()});
+    }
+
+    static void increment(Map<String, int[]> counts, String key) {
+        int[] count = counts.get(key);
+        if (count == null)
+            counts.put(key, count = new int[1]);
+        count[0]++;
+    }
+
+    static String method(StackTraceElement e) {
+        return e.getClassName() + "." + e.getMethodName();
+    }
+}
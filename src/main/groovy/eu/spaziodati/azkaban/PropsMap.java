@@ -0,0 +1,83 @@
+package eu.spaziodati.azkaban;
+
+import azkaban.utils.Props;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only Map view of Props: values are looked up (through the parents) only
+ * when they are read, so no copy of the properties is created.
+ * References to values written in files (see OutputReference) are loaded on first read.
+ */
+public class PropsMap extends AbstractMap<String, String> {
+
+    private final Props props;
+    private final Map<Object, String> resolved = new ConcurrentHashMap<>();
+
+    public PropsMap(Props props) {
+        this.props = props;
+    }
+
+    public Props getProps() {
+        return props;
+    }
+
+    @Override
+    public String get(Object key) {
+        String value = props.get(key);
+        if (!OutputReference.isReference(value))
+            return value;
+
+        // cached by reference, the property may be changed to point to another file
+        String content = resolved.get(value);
+        if (content == null) {
+            content = OutputReference.resolve(value, new File(props.getString(AzkabanGroovyRunner.WORKING_DIR, ".")));
+            resolved.put(value, content);
+        }
+        return content;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return props.containsKey(key);
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                final Iterator<String> keys = props.getKeySet().iterator();
+                return new Iterator<Entry<String, String>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return keys.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        String key = keys.next();
+                        return new SimpleImmutableEntry<>(key, get(key));
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException("Properties are read-only");
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return props.getKeySet().size();
+            }
+        };
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(props.getKeySet());
+    }
+}
@@ -0,0 +1,62 @@
+package eu.spaziodati.azkaban;
+
+import azkaban.utils.Props;
+
+import java.util.Map;
+
+/**
+ * Props that load the values written in files (see OutputReference) when they are read.
+ * It has no properties on its own: reads and writes are delegated to the wrapped props,
+ * so properties put by the script are visible to the job as before.
+ */
+public class ResolvingProps extends Props {
+
+    private final Props props;
+    private final PropsMap values;
+
+    public ResolvingProps(Props props) {
+        super(props);
+        this.props = props;
+        this.values = new PropsMap(props);
+    }
+
+    @Override
+    public String get(Object key) {
+        return values.get(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return props.put(key, value);
+    }
+
+    @Override
+    public String put(String key, Integer value) {
+        return props.put(key, value);
+    }
+
+    @Override
+    public String put(String key, Long value) {
+        return props.put(key, value);
+    }
+
+    @Override
+    public String put(String key, Double value) {
+        return props.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends String> m) {
+        props.putAll(m);
+    }
+
+    @Override
+    public void putAll(Props p) {
+        props.putAll(p);
+    }
+
+    @Override
+    public String removeLocal(Object key) {
+        return props.removeLocal(key);
+    }
+}
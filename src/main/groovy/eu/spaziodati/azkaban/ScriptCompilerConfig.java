@@ -0,0 +1,85 @@
+package eu.spaziodati.azkaban;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.transform.CompileStatic;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Compiler configuration for the scripts, shared by the Groovy job and the runner
+ * of GroovyProcess/GroovyRemote jobs
+ */
+public class ScriptCompilerConfig {
+
+    // if true, @CompileStatic is applied to all classes
+    public static final String COMPILE_STATIC = "groovy.compileStatic";
+    // if true, invokedynamic is used for method calls
+    public static final String INDY = "groovy.indy";
+    // a groovy script that customizes the compiler configuration, like groovyc --configscript
+    public static final String CONFIG_SCRIPT = "groovy.compilerConfig";
+
+    /**
+     * A configuration that also knows the configuration script it has been customized with:
+     * the script can change anything, so it is identified by its path and the hash of its content
+     */
+    public static class Configuration extends CompilerConfiguration {
+        private String configScript = "";
+
+        public String getConfigScript() {
+            return configScript;
+        }
+    }
+
+    public static Configuration create(Map<?, ?> props, File workdir, String[] classpath) throws IOException {
+        Configuration config = new Configuration();
+
+        if (isTrue(props.get(COMPILE_STATIC)))
+            config.addCompilationCustomizers(new ASTTransformationCustomizer(CompileStatic.class));
+
+        if (isTrue(props.get(INDY))) {
+            config.getOptimizationOptions().put(CompilerConfiguration.INVOKEDYNAMIC, true);
+            config.setTargetBytecode(CompilerConfiguration.JDK7);
+        }
+
+        Object script = props.get(CONFIG_SCRIPT);
+        if (script != null && script.toString().length() > 0) {
+            File file = locate(script.toString(), workdir, classpath);
+            Binding binding = new Binding();
+            binding.setVariable("configuration", config);
+
+            CompilerConfiguration configScriptConfig = new CompilerConfiguration();
+            ImportCustomizer imports = new ImportCustomizer();
+            imports.addStaticStars("org.codehaus.groovy.control.customizers.builder.CompilerCustomizationBuilder");
+            configScriptConfig.addCompilationCustomizers(imports);
+            new GroovyShell(binding, configScriptConfig).evaluate(file);
+            config.configScript = workdir.getAbsoluteFile().toURI().relativize(file.getAbsoluteFile().toURI()).getPath()
+                    + ":" + CommandScript.sha1(Files.readAllBytes(file.toPath()));
+        }
+
+        return config;
+    }
+
+    // the config script is searched in the working dir, then in the classpath
+    static File locate(String path, File workdir, String[] classpath) throws IOException {
+        File f = new File(path);
+        if (f.isAbsolute()) {
+            if (f.exists()) return f;
+        } else {
+            if (new File(workdir, path).exists()) return new File(workdir, path);
+            for (String dir : classpath)
+                if (new File(dir, path).exists()) return new File(dir, path);
+        }
+        throw new IOException("Compiler configuration script not found: " + path);
+    }
+
+    static boolean isTrue(Object value) {
+        return value != null && "true".equalsIgnoreCase(value.toString().trim());
+    }
+}
@@ -0,0 +1,74 @@
+package eu.spaziodati.azkaban.jobtype
+
+import azkaban.executor.Status
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Handle of a flow execution submitted by ScriptHelper.executeAsync.
+ * The status is updated by FlowStatusPoller, waiting for the result
+ * doesn't require any polling by the script.
+ */
+class FlowExecution {
+
+    final int execId
+    final String project
+    final String flow
+
+    final ScriptHelper helper
+    private final CountDownLatch latch = new CountDownLatch(1)
+    volatile Status status = null
+    volatile Exception error = null
+
+    FlowExecution(ScriptHelper helper, int execId, String project, String flow) {
+        this.helper = helper
+        this.execId = execId
+        this.project = project
+        this.flow = flow
+    }
+
+    boolean isDone() {
+        return latch.count == 0
+    }
+
+    boolean isSuccess() {
+        return status == Status.SUCCEEDED
+    }
+
+    /**
+     * Waits for the execution to finish and returns its final status
+     */
+    Status get() {
+        latch.await()
+        return result()
+    }
+
+    Status get(long timeout, TimeUnit unit = TimeUnit.SECONDS) {
+        if (!latch.await(timeout, unit))
+            throw new TimeoutException("Execution $execId of flow '$flow' not finished after $timeout ${unit.toString().toLowerCase()}")
+        return result()
+    }
+
+    private Status result() {
+        if (error) throw new Exception("Unable to get status of execution $execId of flow '$flow': $error", error)
+        return status
+    }
+
+    void update(Status status) {
+        this.status = status
+        if (Status.isStatusFinished(status))
+            latch.countDown()
+    }
+
+    void fail(Exception error) {
+        this.error = error
+        latch.countDown()
+    }
+
+    @Override
+    String toString() {
+        return "Execution $execId of flow '$flow' of project '$project': ${status ?: 'UNKNOWN'}"
+    }
+}
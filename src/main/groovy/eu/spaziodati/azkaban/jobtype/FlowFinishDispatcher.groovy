@@ -0,0 +1,155 @@
+package eu.spaziodati.azkaban.jobtype
+
+import azkaban.event.Event
+import azkaban.event.EventListener
+import azkaban.execapp.FlowRunner
+import azkaban.spi.EventType
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+
+/**
+ * Single listener per FlowRunner that dispatches flow-finish events to the handlers
+ * registered by scripts (see ScriptHelper.onfinish). Handlers are indexed by nested
+ * flow id, so each event costs a single lookup regardless of how many handlers
+ * are registered, and they are removed as soon as they have been triggered.
+ * When the whole flow finishes, the dispatcher removes itself from the FlowRunner and
+ * runs the actions registered with onUnregister (eg. releasing the class loaders of the
+ * scripts), once the asynchronous handlers still running have completed.
+ */
+class FlowFinishDispatcher implements EventListener {
+
+    // a plain map: each dispatcher references its FlowRunner, so entries are removed
+    // only by unregister(), when the FLOW_FINISHED event of the runner is received
+    private static final Map<FlowRunner, FlowFinishDispatcher> dispatchers = new HashMap<>()
+
+    // asynchronous handlers run here, so that slow handlers don't block the flow runner thread
+    private static final ExecutorService asyncExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "GroovyOnFinishHandler")
+            t.setDaemon(true)
+            return t
+        }
+    })
+
+    static FlowFinishDispatcher of(FlowRunner flowrunner) {
+        synchronized (dispatchers) {
+            def dispatcher = dispatchers.get(flowrunner)
+            if (!dispatcher) {
+                dispatcher = new FlowFinishDispatcher(flowrunner)
+                dispatchers.put(flowrunner, dispatcher)
+                flowrunner.addListener(dispatcher)
+            }
+            return dispatcher
+        }
+    }
+
+    private static class Handler {
+        Closure closure
+        boolean async
+    }
+
+    final FlowRunner flowrunner
+    private final Map<String, List<Handler>> handlers = new HashMap<>()
+    private final List<Future> asyncRuns = new CopyOnWriteArrayList<>()
+    private final List<Runnable> unregisterActions = new CopyOnWriteArrayList<>()
+
+    private FlowFinishDispatcher(FlowRunner flowrunner) {
+        this.flowrunner = flowrunner
+    }
+
+    void register(String flowId, Closure closure, boolean async = false) {
+        synchronized (handlers) {
+            def list = handlers.get(flowId)
+            if (list == null) {
+                list = []
+                handlers.put(flowId, list)
+            }
+            list.add(new Handler(closure: closure, async: async))
+        }
+    }
+
+    /**
+     * The action runs when the flow finishes, after the asynchronous handlers
+     */
+    void onUnregister(Runnable action) {
+        unregisterActions.add(action)
+    }
+
+    @Override
+    void handleEvent(Event event) {
+
+        if (event.type == EventType.FLOW_FINISHED && event.runner == flowrunner) {
+            unregister()
+            return
+        }
+
+        if (event.type != EventType.JOB_FINISHED || !(event.runner instanceof FlowRunner) || !event.data)
+            return
+
+        List<Handler> triggered
+        synchronized (handlers) {
+            triggered = handlers.remove(event.data.nestedId)
+        }
+        if (!triggered) return
+
+        flowrunner.logger.info("Flow `${event.data.nestedId}` FINISHED, triggering ${triggered.size()} onFinish handler/s")
+        triggered.each { Handler handler ->
+            if (handler.async) {
+                asyncRuns.add(asyncExecutor.submit {
+                    try {
+                        handler.closure.call()
+                    } catch (Exception e) {
+                        flowrunner.logger.error("Error during execution of asynchronous onFinish handler", e)
+                    }
+                })
+            } else {
+                try {
+                    flowrunner.logger.info("Triggering onFinish closure")
+                    handler.closure.call()
+                } catch (Exception e) {
+                    flowrunner.logger.error("Error during execution of onFinish handler");
+                    flowrunner.logger.error("Switching state to FAILED");
+                    throw e
+                }
+            }
+        }
+    }
+
+    private void unregister() {
+        synchronized (dispatchers) {
+            dispatchers.remove(flowrunner)
+        }
+        synchronized (handlers) {
+            handlers.clear()
+        }
+        try {
+            flowrunner.removeListener(this)
+        } catch (Exception e) {
+            flowrunner.logger.warn("Unable to remove onFinish dispatcher: " + e)
+        }
+        if (!unregisterActions)
+            return
+        // run in the background, so the flow runner doesn't wait for the asynchronous handlers
+        asyncExecutor.submit {
+            asyncRuns.each {
+                try {
+                    it.get()
+                } catch (Exception e) {
+                    // already logged by the handler
+                }
+            }
+            unregisterActions.each {
+                try {
+                    it.run()
+                } catch (Exception e) {
+                    flowrunner.logger.warn("Error while releasing the resources of onFinish handlers: " + e)
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package eu.spaziodati.azkaban.jobtype
+
+import azkaban.executor.Status
+import org.apache.http.message.BasicNameValuePair
+import org.apache.log4j.Logger
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+
+/**
+ * A single polling loop, shared by all the scripts running in this JVM, that
+ * updates the status of the executions submitted with ScriptHelper.executeAsync.
+ * The loop is started when the first execution is submitted and it wakes up every
+ * second, but each execution is polled at the interval requested by its job.
+ * Only the changes since the previous poll are fetched (fetchexecflowupdate),
+ * not the whole execution graph.
+ */
+class FlowStatusPoller {
+
+    static final Logger logger = Logger.getLogger(FlowStatusPoller)
+
+    // after this number of consecutive errors, the execution is marked as failed
+    static final int MAX_ERRORS = 10
+
+    static final FlowStatusPoller instance = new FlowStatusPoller()
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "GroovyFlowStatusPoller")
+            t.setDaemon(true)
+            return t
+        }
+    })
+    private final Map<FlowExecution, Watch> watched = new ConcurrentHashMap<>()
+    private boolean scheduled = false
+
+    private static class Watch {
+        long intervalMs
+        long nextPoll
+        long lastUpdateTime
+        int errors = 0
+    }
+
+    FlowExecution watch(FlowExecution execution, long intervalSeconds) {
+        def now = System.currentTimeMillis()
+        def intervalMs = TimeUnit.SECONDS.toMillis(Math.max(1, intervalSeconds))
+        watched.put(execution, new Watch(intervalMs: intervalMs, nextPoll: now + intervalMs, lastUpdateTime: now))
+        synchronized (this) {
+            if (!scheduled) {
+                scheduler.scheduleWithFixedDelay({ poll() } as Runnable, 1, 1, TimeUnit.SECONDS)
+                scheduled = true
+            }
+        }
+        return execution
+    }
+
+    private void poll() {
+        watched.each { FlowExecution execution, Watch watch ->
+            def now = System.currentTimeMillis()
+            if (now < watch.nextPoll)
+                return
+            watch.nextPoll = now + watch.intervalMs
+            try {
+                def result = execution.helper.ajax("/executor", [
+                        new BasicNameValuePair("ajax", "fetchexecflowupdate"),
+                        new BasicNameValuePair("execid", execution.execId.toString()),
+                        new BasicNameValuePair("lastUpdateTime", watch.lastUpdateTime.toString())
+                ])
+                if (result.updateTime)
+                    watch.lastUpdateTime = result.updateTime as long
+                execution.update(Status.valueOf((String) result.status))
+                watch.errors = 0
+            } catch (Exception e) {
+                watch.errors++
+                logger.warn("Unable to fetch status of execution ${execution.execId} (error n.${watch.errors}): $e")
+                if (watch.errors >= MAX_ERRORS)
+                    execution.fail(e)
+            }
+            if (execution.isDone())
+                watched.remove(execution)
+        }
+    }
+}
@@ -4,24 +4,35 @@ import azkaban.execapp.FlowRunner;
 import azkaban.execapp.JobRunner;
 import azkaban.jobExecutor.AbstractProcessJob;
 import azkaban.utils.Props;
-import azkaban.utils.PropsUtils;
-import eu.spaziodati.azkaban.AzkabanGroovyRunner;
-import eu.spaziodati.azkaban.GroovyResolversConfig;
+import eu.spaziodati.azkaban.CommandScript;
 import eu.spaziodati.azkaban.JobUtils;
+import eu.spaziodati.azkaban.Metrics;
+import eu.spaziodati.azkaban.OutputReference;
+import eu.spaziodati.azkaban.Profiler;
+import eu.spaziodati.azkaban.PropsMap;
+import eu.spaziodati.azkaban.Reflection;
+import eu.spaziodati.azkaban.ResolvingProps;
+import eu.spaziodati.azkaban.ScriptCompilerConfig;
+import groovy.grape.Grape;
 import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
 import groovy.util.GroovyScriptEngine;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Groovy creates classes dynamically, but the default Java VM does not GC the PermGen.
- * Add -XX:+CMSClassUnloadingEnabled -XX:+UseConcMarkSweepGC to JVM OPTS to avoid out of memory
+ * Groovy creates classes dynamically: each job has its own class loader, that is closed
+ * and dereferenced (together with the meta classes of the script) when the job ends, or
+ * when the flow ends if the script registered flow finish handlers, so that the classes
+ * can be unloaded. See LoaderLeakDetector for loaders that stay alive.
  */
 
 public class GroovyJob extends AbstractProcessJob {
@@ -52,6 +63,13 @@ public class GroovyJob extends AbstractProcessJob {
     // if true, this job will forward incoming parameters as job's output
     // to automatically propagate all properties to the next step of the flow
     public static final String FORWARD_PARAMETERS = "groovy.forwardParameters";
+    /**
+     * Max CPU time (seconds) and max allocated memory (MB) of the script,
+     * summing all the threads it creates through the azkaban helper.
+     * When exceeded the script is cancelled. If less than 1, no limit.
+     */
+    public static final String MAX_CPU_SECONDS = "groovy.maxCpuSeconds";
+    public static final String MAX_ALLOCATED_MB = "groovy.maxAllocatedMb";
 
 
     public GroovyJob(String jobid, Props sysProps, Props jobProps, Logger log) {
@@ -59,6 +77,7 @@ public class GroovyJob extends AbstractProcessJob {
     }
 
     AtomicReference<Double> progress = new AtomicReference<Double>(0.0);
+    ThreadUsage threadUsage = new ThreadUsage();
     volatile Future<Object> task = null;
     volatile Props resultProps = null;
 
@@ -79,10 +98,26 @@ public class GroovyJob extends AbstractProcessJob {
             return;
         }
 
+        ResultCache cache = ResultCache.of("Groovy", jobProps, new File(getWorkingDirectory()), getLog());
+        if (cache != null) {
+            Props cached = cache.lookup();
+            if (cached != null) {
+                resultProps = JobUtils.withForwardedParameters(cached, jobProps, getLog());
+                progress.set(1.0);
+                return;
+            }
+        }
+
+        // the heap is shared with the executor, so only wall time and status are recorded
+        ResourceHistory history = ResourceHistory.of(jobProps, getId(), getLog());
+
         final GroovyScriptEngine engine;
         final Binding scriptVars;
+        ScriptHelper helper = null;
+        GroovyClassLoader loader = null;
+        LoaderLeakDetector.Tracked trackedLoader = null;
         String scriptFile;
-        List<String> commands = new ArrayList<>();
+        Class<?> commandClass = null;
         int timeout;
         try {
             File wd = new File(getWorkingDirectory());
@@ -96,13 +131,9 @@ public class GroovyJob extends AbstractProcessJob {
                 info("Using script: "+scriptFile);
             }
 
-            if (scriptFile == null) {
-                StringBuilder scriptlog = new StringBuilder();
-                scriptFile = AzkabanGroovyRunner.createScriptFromCommand(commandmap, wd, scriptlog);
-                info(scriptlog.toString());
-            }
-
             timeout = jobProps.getInt(TIMEOUT, 0);
+            if (history != null && history.isAdaptive())
+                timeout = history.adaptiveTimeout(timeout);
 
             String cp = jobProps.getString(CLASSPATH, "");
             String[] urls= cp.split(":");
@@ -121,13 +152,27 @@ public class GroovyJob extends AbstractProcessJob {
             FlowRunner flowRunner = JobUtils.myFlowRunner(execid);
             JobRunner jobRunner = JobUtils.myJobRunner(execid, getId());
 
-            ScriptHelper helper = new ScriptHelper(flowRunner, jobRunner, jobProps);
+            helper = new ScriptHelper(flowRunner, jobRunner, jobProps, progress);
+            helper.setThreadUsage(threadUsage);
+            helper.setSysProps(getSysProps());
 
             
             engine = new GroovyScriptEngine(urls);
+            // setConfig replaces the loader of the engine: the one created with it has no classes
+            GroovyClassLoader initialLoader = engine.getGroovyClassLoader();
+            engine.setConfig(ScriptCompilerConfig.create(new PropsMap(jobProps), wd, urls));
+            initialLoader.close();
+            loader = engine.getGroovyClassLoader();
+            trackedLoader = LoaderLeakDetector.track(loader, execid + ":" + getId());
+            if (scriptFile == null) {
+                StringBuilder scriptlog = new StringBuilder();
+                commandClass = CommandScript.load(commandmap, urls, wd, engine, scriptlog);
+                info(scriptlog.toString());
+            }
+
             scriptVars = new Binding();
-            scriptVars.setVariable("props", jobProps);
-            scriptVars.setVariable("config", PropsUtils.toStringMap(jobProps, false));
+            scriptVars.setVariable("props", new ResolvingProps(jobProps));
+            scriptVars.setVariable("config", new PropsMap(jobProps));
             scriptVars.setVariable("progress", progress);
             scriptVars.setVariable("flowrunner", flowRunner);
             scriptVars.setVariable("onfinish", helper);
@@ -141,65 +186,60 @@ public class GroovyJob extends AbstractProcessJob {
             throw new Exception("Job setup failed! "+e.getMessage(), e);
         }
 
-        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread t = new Thread(r, "GroovyExecutor");
-                t.setDaemon(true);
-                return t;
-            }
-        });
+        ExecutorService executor = Executors.newSingleThreadExecutor(threadUsage.factory("GroovyExecutor"));
+        long maxCpuNanos = TimeUnit.SECONDS.toNanos(jobProps.getLong(MAX_CPU_SECONDS, 0));
+        long maxAllocatedBytes = jobProps.getLong(MAX_ALLOCATED_MB, 0) * 1024 * 1024;
 
-        boolean success = false;
-        final Map allproperties = new HashMap();
-        allproperties.putAll(System.getProperties());
-        for (String k : jobProps.getKeySet())
-            allproperties.put(k, jobProps.get(k));
+        Profiler profiler = null;
+        if (jobProps.getBoolean(Profiler.PROFILE, false))
+            profiler = startProfiler(execid);
 
+        boolean success = false;
         long startMS = System.currentTimeMillis();
         try {
             info("Launching script...");
             final String finalScriptFile = scriptFile;
+            final Class<?> finalCommandClass = commandClass;
             task = executor.submit(new Callable<Object>() {
                 @Override
                 public Object call() throws Exception {
-//                    GroovyResolversConfig config = GroovyResolversConfig.fromMap(allproperties);
-//                    try {
-                        return engine.run(finalScriptFile, scriptVars);
-//                    } finally {
-//                        config.restore();
-//                    }
+                    if (finalCommandClass != null)
+                        return InvokerHelper.createScript(finalCommandClass, scriptVars).run();
+                    return engine.run(finalScriptFile, scriptVars);
                 }
             });
 
-            Object result = null;
-            if (timeout <= 0) {
-                result = task.get();
-            } else {
+            // wake up every second to check timeout and budgets
+            long deadline = timeout > 0 ? startMS + timeout * 1000L : Long.MAX_VALUE;
+            Object result;
+            while (true) {
                 try {
-                    result = task.get(timeout, TimeUnit.SECONDS);
+                    result = task.get(Math.max(1, Math.min(1000, deadline - System.currentTimeMillis())), TimeUnit.MILLISECONDS);
+                    break;
                 } catch (TimeoutException te) {
-                    error("Groovy script execution timed-out! ("+timeout+"s)");
-                    throw new Exception("Groovy script execution timed-out! ("+timeout+"s)", te);
+                    if (System.currentTimeMillis() >= deadline) {
+                        error("Groovy script execution timed-out! ("+timeout+"s)");
+                        throw new Exception("Groovy script execution timed-out! ("+timeout+"s)", te);
+                    }
+                    checkBudget(maxCpuNanos, maxAllocatedBytes);
                 }
             }
 
-            boolean forwardParams = jobProps.getBoolean(FORWARD_PARAMETERS, false);
-            Props resultProps = new Props();
-            if (forwardParams)
-                resultProps = JobUtils.forwardParameters(jobProps);
-            
-            
+            // output is converted in a single pass in a flat Props, values too long are written to files
+            Props output = new Props();
+            int maxValueSize = jobProps.getInt(OutputReference.MAX_VALUE_SIZE, OutputReference.DEFAULT_MAX_VALUE_SIZE);
+
             boolean checkOutput = jobProps.getBoolean(CHECK_OUTPUT, false);
             if (result != null) {
-                if (result instanceof Props)
-                    resultProps = new Props(resultProps, (Props)result);
-                else if (result instanceof Map) {
-                    // convert any object to String
-                    Map resultmap = (Map) result;
-                    for (Object k : resultmap.keySet()) 
-                        resultmap.put(k, resultmap.get(k).toString());
-                    resultProps = new Props(resultProps, (Map) result);
+                if (result instanceof Props) {
+                    Props resultprops = (Props) result;
+                    for (String k : resultprops.getKeySet())
+                        putOutput(output, k, resultprops.get(k), maxValueSize);
+                } else if (result instanceof Map) {
+                    for (Object o : ((Map<?, ?>) result).entrySet()) {
+                        Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                        putOutput(output, String.valueOf(entry.getKey()), entry.getValue(), maxValueSize);
+                    }
                 } else {
                     if (checkOutput)
                         throw new Exception("Script didn't generate a valid output. (" + result.getClass() + "): " + result.toString());
@@ -212,15 +252,23 @@ public class GroovyJob extends AbstractProcessJob {
                 else
                     info("Script didn't generate output.");
             }
-            Map flattenresult = PropsUtils.toStringMap(resultProps, false);
-            this.resultProps = new Props(null, flattenresult);
-            
-            
+            // forwarded parameters are not stored: they come from upstream values that are not part of the key
+            if (cache != null)
+                cache.store(output);
+            this.resultProps = JobUtils.withForwardedParameters(output, jobProps, getLog());
+
             progress.set(1.0);
             success = true;
 
         } finally {
             executor.shutdownNow();
+            helper.close();
+            releaseClassLoader(loader, commandClass, scriptVars, helper, trackedLoader);
+            reportUsage();
+            if (history != null)
+                history.record(System.currentTimeMillis() - startMS, -1, success ? ResourceHistory.SUCCEEDED : ResourceHistory.FAILED);
+            if (profiler != null)
+                stopProfiler(profiler);
             if (success)
                 info("Job completed successfully!");
             else
@@ -228,6 +276,122 @@ public class GroovyJob extends AbstractProcessJob {
         }
     }
 
+    // flow finish handlers run at the end of the flow and may still need the classes and the
+    // bindings of the script: in that case the loader is released when the flow finishes
+    void releaseClassLoader(final GroovyClassLoader loader, final Class<?> commandClass, final Binding scriptVars,
+                            ScriptHelper helper, final LoaderLeakDetector.Tracked trackedLoader) {
+        task = null;
+
+        int handlers = helper.getOnfinishHandlers().get();
+        if (handlers > 0) {
+            info("Class loader kept until the end of the flow, for " + handlers + " flow finish handler/s");
+            FlowFinishDispatcher.of(helper.getFlowrunner()).onUnregister(new Runnable() {
+                @Override
+                public void run() {
+                    unloadClasses(loader, commandClass, scriptVars, trackedLoader);
+                }
+            });
+            return;
+        }
+        unloadClasses(loader, commandClass, scriptVars, trackedLoader);
+    }
+
+    void unloadClasses(GroovyClassLoader loader, Class<?> commandClass, Binding scriptVars,
+                       LoaderLeakDetector.Tracked trackedLoader) {
+        scriptVars.getVariables().clear();
+        if (commandClass != null)
+            InvokerHelper.removeClass(commandClass);
+        for (Class<?> c : loader.getLoadedClasses())
+            InvokerHelper.removeClass(c);
+        loader.clearCache();
+        forgetGrapes(loader);
+        try {
+            loader.close();
+        } catch (IOException e) {
+            warn("Unable to close class loader: " + e.getMessage());
+        }
+        LoaderLeakDetector.released(trackedLoader, jobProps.getLong(LoaderLeakDetector.GRACE, 600) * 1000, null);
+    }
+
+    // @Grab keeps the dependencies loaded by each loader, only if Grape has been used
+    void forgetGrapes(ClassLoader loader) {
+        try {
+            Object grape = Reflection.get(Grape.class, "instance");
+            if (grape != null) {
+                Map<?, ?> loadedDeps = Reflection.get(grape, "loadedDeps");
+                loadedDeps.remove(loader);
+            }
+        } catch (Exception e) {
+            // not a GrapeIvy engine
+        }
+    }
+
+    // the recording covers the whole executor JVM, while the sampler only sees the script threads
+    Profiler startProfiler(int execid) {
+        Profiler profiler = new Profiler(jobProps.getLong(Profiler.INTERVAL, 20)) {
+            @Override
+            protected Collection<Thread> threads() {
+                return threadUsage.getLiveThreads();
+            }
+        };
+        String error = profiler.startRecording("groovy-" + execid + "-" + getId());
+        if (error != null)
+            warn("Unable to start JFR recording, only the hot methods summary will be available: " + error);
+        else
+            info("JFR recording started");
+        profiler.start(getId());
+        return profiler;
+    }
+
+    void stopProfiler(Profiler profiler) {
+        profiler.stop();
+        File file = new File(getWorkingDirectory(), Profiler.recordingFile(getId()));
+        String error = profiler.stopRecording(file.getAbsolutePath());
+        if (error == null)
+            info("JFR recording written to " + file.getAbsolutePath());
+        info(profiler.summary(jobProps.getInt(Profiler.TOP, 15)));
+    }
+
+    // null values are skipped, any other object is converted to String
+    void putOutput(Props output, String key, Object value, int maxValueSize) throws Exception {
+        if (value == null) {
+            warn("Output " + key + " is null, skipped");
+            return;
+        }
+        String text = value.toString();
+        String spilled = OutputReference.spill(getId(), key, text, new File(getWorkingDirectory()), maxValueSize);
+        if (spilled != text) {
+            info("Output " + key + " is " + text.length() + " chars long, written to " + spilled);
+            Metrics.inc("groovy.output.spilled");
+        }
+        output.put(key, spilled);
+    }
+
+    void checkBudget(long maxCpuNanos, long maxAllocatedBytes) throws Exception {
+        String exceeded = null;
+        if (maxCpuNanos > 0 && threadUsage.getCpuNanos() > maxCpuNanos)
+            exceeded = "CPU time limit exceeded ("+jobProps.getLong(MAX_CPU_SECONDS)+"s)";
+        else if (maxAllocatedBytes > 0 && threadUsage.getAllocatedBytes() > maxAllocatedBytes)
+            exceeded = "Allocated memory limit exceeded ("+jobProps.getLong(MAX_ALLOCATED_MB)+"MB)";
+
+        if (exceeded != null) {
+            Metrics.inc("groovy.job.budget.exceeded");
+            error("Groovy script cancelled: " + exceeded);
+            task.cancel(true);
+            throw new Exception("Groovy script cancelled: " + exceeded);
+        }
+    }
+
+    void reportUsage() {
+        long cpuMs = TimeUnit.NANOSECONDS.toMillis(threadUsage.getCpuNanos());
+        long allocated = threadUsage.getAllocatedBytes();
+        info(String.format("Resources used by the script: CPU time %.3fs, allocated memory %dMB",
+                cpuMs / 1000.0, allocated / (1024 * 1024)));
+        Metrics.inc("groovy.job.count");
+        Metrics.add("groovy.job.cpu.ms", cpuMs);
+        Metrics.add("groovy.job.allocated.bytes", allocated);
+    }
+
     @Override
     public Props getJobGeneratedProperties() {
         return resultProps;
@@ -4,13 +4,21 @@ import azkaban.jobExecutor.AbstractProcessJob;
 import azkaban.jobExecutor.JavaProcessJob;
 import azkaban.utils.Props;
 import azkaban.utils.PropsUtils;
+import eu.spaziodati.azkaban.AzkabanGroovyRunner;
 import eu.spaziodati.azkaban.JobUtils;
+import eu.spaziodati.azkaban.ParameterForwarding;
+import eu.spaziodati.azkaban.Profiler;
 import eu.spaziodati.azkaban.Reflection;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
 
 /**
  * Check JavaProcessJob for properties references.
@@ -46,6 +54,15 @@ public class GroovyProcessJob extends JavaProcessJob {
         return paths;
     }
 
+    // with groovy.profile the runner JVM writes a JFR recording in the working dir
+    @Override
+    protected String getJVMArguments() {
+        String args = super.getJVMArguments();
+        if (!jobProps.getBoolean(Profiler.PROFILE, false))
+            return args;
+        return (args == null ? "" : args + " ") + Profiler.jvmArguments(Profiler.recordingFile(getId()));
+    }
+
     @Override
     public void run() throws Exception {
 
@@ -56,6 +73,23 @@ public class GroovyProcessJob extends JavaProcessJob {
             return;
         }
 
+        // the runner has no access to the flow, keys to skip in delta mode are passed as a parameter
+        if (jobProps.getBoolean(JobUtils.FORWARD_PARAMETERS, false)) {
+            Set<String> unchanged = JobUtils.unchangedParameters(jobProps, getLog());
+            if (unchanged != null)
+                jobProps.put(ParameterForwarding.UNCHANGED, ParameterForwarding.join(unchanged));
+        }
+
+        ResultCache cache = ResultCache.of("GroovyProcess", new Props(getSysProps(), jobProps), new File(getWorkingDirectory()), getLog());
+        if (cache != null) {
+            Props cached = cache.lookup();
+            if (cached != null) {
+                Reflection.set(AbstractProcessJob.class, this, "generatedProperties",
+                        JobUtils.withForwardedParameters(cached, jobProps, getLog()));
+                return;
+            }
+        }
+
         try {
             Path tmp = Files.createTempFile(Paths.get(getWorkingDirectory()), "groovy-executor", ".jar");
             jarfile = tmp.toString();
@@ -68,11 +102,65 @@ public class GroovyProcessJob extends JavaProcessJob {
             throw new Exception("Unable to install groovy executor jar. Location: "+jarfile, e);
         }
 
+        ResourceHistory history = history();
+        if (history != null && history.isAdaptive())
+            adaptiveMaxHeap = history.adaptiveMaxHeap(jobProps.getString(MAX_MEMORY_SIZE, null));
+
+        long startMS = System.currentTimeMillis();
+        String status = ResourceHistory.FAILED;
         try {
             super.run();
+            status = ResourceHistory.SUCCEEDED;
+            if (cache != null)
+                cache.store(scriptOutput(getJobGeneratedProperties()));
         } finally {
             if (jarfile != null)
                 Files.deleteIfExists(Paths.get(jarfile));
+            String outputfile = jobProps.getString(ENV_PREFIX + JOB_OUTPUT_PROP_FILE, null);
+            if (outputfile != null)
+                Files.deleteIfExists(Paths.get(outputfile + AzkabanGroovyRunner.SCRIPT_OUTPUT_SUFFIX));
+            if (history != null) {
+                history.record(System.currentTimeMillis() - startMS,
+                        outputfile != null ? readPeakHeap(new File(outputfile + AzkabanGroovyRunner.STATS_SUFFIX)) : -1, status);
+            }
+        }
+    }
+
+    // parameters are forwarded by the runner, that writes the output of the script alone in
+    // a separate file: that is what is cached, parameters are forwarded again on cache hits
+    Props scriptOutput(Props output) {
+        String outputfile = jobProps.getString(ENV_PREFIX + JOB_OUTPUT_PROP_FILE, null);
+        if (output == null || outputfile == null || !jobProps.getBoolean(JobUtils.FORWARD_PARAMETERS, false))
+            return output;
+        return loadOutputFileProps(new File(outputfile + AzkabanGroovyRunner.SCRIPT_OUTPUT_SUFFIX));
+    }
+
+    // set when groovy.adaptive is true and there are enough executions in the history
+    protected String adaptiveMaxHeap = null;
+
+    @Override
+    protected String getMaxMemorySize() {
+        return adaptiveMaxHeap != null ? adaptiveMaxHeap : super.getMaxMemorySize();
+    }
+
+    // the history folder can be configured in the private.properties of the job type
+    protected ResourceHistory history() {
+        return ResourceHistory.of(new Props(getSysProps(), jobProps), getId(), getLog());
+    }
+
+    // written by the runner on exit, -1 if not available
+    protected long readPeakHeap(File statsfile) {
+        if (!statsfile.exists())
+            return -1;
+        try (Reader reader = Files.newBufferedReader(statsfile.toPath(), StandardCharsets.UTF_8)) {
+            Properties stats = new Properties();
+            stats.load(reader);
+            return Long.parseLong(stats.getProperty(AzkabanGroovyRunner.PEAK_HEAP, "-1"));
+        } catch (Exception e) {
+            warn("Unable to read runner stats: " + e.getMessage());
+            return -1;
+        } finally {
+            statsfile.delete();
         }
     }
 
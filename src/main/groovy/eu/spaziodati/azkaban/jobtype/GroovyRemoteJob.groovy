@@ -9,8 +9,14 @@ import com.aestasit.infrastructure.ssh.SshOptions
 import com.aestasit.infrastructure.ssh.dsl.SessionDelegate
 import com.aestasit.infrastructure.ssh.dsl.SshDslEngine
 import com.jcraft.jsch.JSch
+import eu.spaziodati.azkaban.AzkabanGroovyRunner
 import eu.spaziodati.azkaban.JobUtils
+import eu.spaziodati.azkaban.Metrics
+import eu.spaziodati.azkaban.OutputReference
+import eu.spaziodati.azkaban.ParameterForwarding
+import eu.spaziodati.azkaban.Profiler
 import eu.spaziodati.azkaban.Reflection
+import groovy.json.JsonSlurper
 import org.apache.commons.io.FileUtils
 import org.apache.log4j.Logger
 
@@ -20,9 +26,14 @@ import java.nio.file.Path
 import java.nio.file.Paths
 import java.nio.file.StandardCopyOption
 import java.util.concurrent.Callable
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
 import java.util.concurrent.Executors
 import java.util.concurrent.Future
 import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import java.security.SecureRandom
 import java.math.BigInteger
 
@@ -76,20 +87,38 @@ class GroovyRemoteJob extends GroovyProcessJob {
     static final CLEANUP = "groovy.remote.cleanup"
     static final INIT_SCRIPT = "groovy.remote.initScript"
     static final RETRY = "groovy.remote.retry"
+    // sharded execution: the same script is executed N times in parallel,
+    // shards are assigned to hosts in round-robin
+    static final HOSTS = "groovy.remote.hosts"
+    static final SHARDS = "groovy.remote.shards"
+    static final SHARDS_MERGE = "groovy.remote.shards.merge"
+    static final SHARD_INDEX = "shard.index"
+    static final SHARD_COUNT = "shard.count"
+    // circuit breaker on connection failures, shared by all jobs
+    static final BREAKER_THRESHOLD = "groovy.remote.breaker.threshold"
+    static final BREAKER_COOLDOWN = "groovy.remote.breaker.cooldown"
+    // if no heartbeat is received from the remote runner for this number
+    // of seconds, the connection is considered lost
+    static final HEARTBEAT_TIMEOUT = "groovy.remote.heartbeat.timeout"
+    // if false, the remote working dir is not copied back, only the output is
+    static final DOWNLOAD = "groovy.remote.download"
 
     static final XMS = "groovy.remote.xms"
     static final XMX = "groovy.remote.xmx"
 
     static def DISCARD_LOG = ~/\d+ bytes transferred/
     static def FIRST_DELAY = 5
+    static def MAX_DELAY = 120
     static def random = new SecureRandom()
 
     public GroovyRemoteJob(String jobid, Props sysProps, Props jobProps, Logger log) {
         super(jobid, sysProps, new Props(sysProps, jobProps), log)
     }
 
-    def temporaryFiles = []
-    volatile Future task = null
+    // shard threads add files while the main thread may be iterating them
+    def temporaryFiles = new CopyOnWriteArrayList()
+    def tasks = new CopyOnWriteArrayList<Future>()
+    def channels = new CopyOnWriteArrayList<RemoteChannel>()
     File outputFile = null;
     File parametersFile = null;
 
@@ -111,10 +140,30 @@ class GroovyRemoteJob extends GroovyProcessJob {
         return jarpath.toString()
     }
 
+    /**
+     * What the remote runner has streamed back so far
+     * (see AzkabanGroovyRunner.STREAM)
+     */
+    static class RemoteChannel {
+        volatile long lastHeartbeat = 0
+        volatile double progress = 0.0
+        volatile String output = null
+        volatile boolean finished = false
+        volatile long peakHeap = -1
+    }
+
     String getNextRand() {
         new BigInteger(64, random).toString(32)
     }
 
+    // exponential backoff (5, 10, 20... seconds, up to MAX_DELAY) with jitter:
+    // the actual delay is randomly chosen in the upper half of the interval, so that
+    // jobs failing at the same time don't retry all together
+    long backoffDelay(int attempt) {
+        long max = Math.min(MAX_DELAY, FIRST_DELAY * (1L << Math.min(attempt - 1, 16))) * 1000L
+        return (long) (max / 2 + random.nextDouble() * max / 2)
+    }
+
 
     @Override
     String createCommandLine() {
@@ -122,7 +171,7 @@ class GroovyRemoteJob extends GroovyProcessJob {
         command += getJVMArguments() + " "
 
         def xms = jobProps.getString(XMS, getInitialMemorySize())
-        def xmx = jobProps.getString(XMX, getMaxMemorySize())
+        def xmx = adaptiveMaxHeap ?: jobProps.getString(XMX, getMaxMemorySize())
 
         command += "-Xms" + xms + " "
         command += "-Xmx" + xmx + " "
@@ -148,10 +197,17 @@ class GroovyRemoteJob extends GroovyProcessJob {
             return;
         }
 
+        // the runner has no access to the flow, keys to skip in delta mode are passed as a parameter
+        if (jobProps.getBoolean(JobUtils.FORWARD_PARAMETERS, false)) {
+            def unchanged = JobUtils.unchangedParameters(jobProps, getLog())
+            if (unchanged != null)
+                jobProps.put(ParameterForwarding.UNCHANGED, ParameterForwarding.join(unchanged))
+        }
+
 
         def config = [:]
+        def shards = []
         try {
-            config[HOST] = jobProps.getString(HOST)
             config[PORT] = jobProps.getInt(PORT, 22)
             config[USERNAME] = jobProps.getString(USERNAME)
             def defaultRemoteWorkingDir = "/tmp/azkaban-${jobProps.get('azkaban.flow.flowid')}-${getNextRand()}"
@@ -165,8 +221,23 @@ class GroovyRemoteJob extends GroovyProcessJob {
             config[CLEANUP] = jobProps.getBoolean(CLEANUP, true)
             config[INIT_SCRIPT] = jobProps.getString(INIT_SCRIPT, "")
             config[RETRY] = jobProps.getInt(RETRY, 5)
+            config[BREAKER_THRESHOLD] = jobProps.getInt(BREAKER_THRESHOLD, 3)
+            config[BREAKER_COOLDOWN] = jobProps.getInt(BREAKER_COOLDOWN, 300)
+            config[HEARTBEAT_TIMEOUT] = jobProps.getInt(HEARTBEAT_TIMEOUT, 60)
+            config[DOWNLOAD] = jobProps.getBoolean(DOWNLOAD, true)
+            config[SHARDS] = jobProps.getInt(SHARDS, 0)
+            config[SHARDS_MERGE] = jobProps.getString(SHARDS_MERGE, "override")
+            // without shards, the hosts listed in groovy.remote.hosts are used
+            // as fallbacks when the circuit of groovy.remote.host is open
+            if (jobProps.containsKey(HOSTS))
+                config[HOSTS] = jobProps.getStringList(HOSTS)
+            else
+                config[HOSTS] = [jobProps.getString(HOST)]
+            config[HOST] = config[SHARDS] > 0 ? config[HOSTS][0] : jobProps.getString(HOST, config[HOSTS][0])
 
             if (!config[PASSWORD] && !config[KEY_FILE]) throw new Exception("No password nor key file has been defined")
+            if (!(config[SHARDS_MERGE] in ["override", "first", "prefix", "strict"]))
+                throw new Exception("Unknown merge policy for shards: ${config[SHARDS_MERGE]}")
 
             config["jar"] = extractEmbeddedGroovyExecutor()
             jarfile = Paths.get(config["jar"]).getFileName().toString()
@@ -175,16 +246,31 @@ class GroovyRemoteJob extends GroovyProcessJob {
             File[] ff = initPropsFiles()
             parametersFile = ff[0]
             outputFile = ff[1]
+            // written by the runner in the remote dir, it comes back with the download
+            temporaryFiles.add(Paths.get(outputFile.path + AzkabanGroovyRunner.STATS_SUFFIX))
             manageWorkingDirectory()
 
+            if (config[SHARDS] > 0)
+                shards = createShards(config)
+            else
+                shards = [ config + [tag: "", env: [:], output: outputFile, channel: new RemoteChannel()] ]
+            channels.addAll(shards*.channel)
+
         } catch (e) {
             throw new Exception("Unable to setup job: "+e.getMessage(), e)
         }
 
-        def executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        def history = history()
+        if (history != null && history.isAdaptive())
+            adaptiveMaxHeap = history.adaptiveMaxHeap(jobProps.getString(XMX, jobProps.getString(MAX_MEMORY_SIZE, null)))
+        long startMS = System.currentTimeMillis()
+        def status = ResourceHistory.FAILED
+
+        def threadCount = new AtomicInteger()
+        def executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
-                Thread t = new Thread(r, "GroovyRemoteExecutor");
+                Thread t = new Thread(r, "GroovyRemoteExecutor-" + threadCount.getAndIncrement());
                 t.setDaemon(true);
                 return t;
             }
@@ -192,230 +278,431 @@ class GroovyRemoteJob extends GroovyProcessJob {
 
 
         try {
-            task = executor.submit({
-
-                info("Trying to connect to ${config[HOST]} ...")
-
-                //CONFIGURATION
-                // Configuration in DefaultSsh is not thread-safe!!!! it is static!
-                // so we have to create on our own an SshOptions object and use that
-                // to init the SshDelegate
-//                trustUnknownHosts = true
-//                verbose = config[VERBOSE]
-//                def prefixcmd = "";
-//                if (config[REMOTE_DIR] != "./") prefixcmd += "cd ${config[REMOTE_DIR]}; "
-//                if (config[SUDO]) prefixcmd += "sudo "
-//                execOptions { prefix = prefixcmd }
-//
-//                logger = new com.aestasit.infrastructure.ssh.log.Logger() {
-//                    @Override void info(String message) {
-//                        if (!DISCARD_LOG.matcher(message).matches() )
-//                            GroovyRemoteJob.this.info("[ssh] " + message)
-//                    }
-//                    @Override void warn(String message) {
-//                        GroovyRemoteJob.this.warn("[ssh] " + message)
-//                    }
-//                    @Override void debug(String message) {
-//                        GroovyRemoteJob.this.debug("[ssh] " + message)
-//                    }
-//                }
-
-                def options = sessionOptions {
-                    trustUnknownHosts = true
-                    verbose = config[VERBOSE]
-                    def prefixcmd = "";
-                    if (config[REMOTE_DIR] != "./") prefixcmd += "cd ${config[REMOTE_DIR]}; "
-                    if (config[SUDO]) prefixcmd += "sudo "
-                    execOptions { prefix = prefixcmd }
-                    scpOptions { showProgress = false }
-                    logger = new com.aestasit.infrastructure.ssh.log.Logger() {
-                        @Override void info(String message) {
-                            if (!DISCARD_LOG.matcher(message).matches() )
-                                GroovyRemoteJob.this.info("[ssh] " + message)
-                        }
-                        @Override void warn(String message) {
-                            GroovyRemoteJob.this.warn("[ssh] " + message)
-                        }
-                        @Override void debug(String message) {
-                            GroovyRemoteJob.this.debug("[ssh] " + message)
-                        }
-                    }
-                };
-
-                safeRemoteSession(options) {
-
-                    host = config[HOST]
-                    port = config[PORT] as int
-                    user = config[USERNAME]
-                    password = config[PASSWORD]
-                    if (config[KEY_FILE]) {
-                        if (!Paths.get(config[KEY_FILE]).isAbsolute()) {
-                            keyFile = new File(getWorkingDirectory(), (String) config[KEY_FILE])
-                        } else
-                            keyFile = new File(config[KEY_FILE])
-                    }
+            def completion = new ExecutorCompletionService(executor)
+            shards.each { shard ->
+                tasks.add(completion.submit({ executeRemotely(shard) } as Callable))
+            }
 
+            // fail fast: as soon as one shard fails (or stops sending heartbeats),
+            // all the others are cancelled
+            def pending = shards.size()
+            while (pending > 0) {
+                def done = completion.poll(1, TimeUnit.SECONDS)
+                try {
+                    if (done != null) {
+                        done.get()
+                        pending--
+                    } else
+                        checkHeartbeats(shards, config[HEARTBEAT_TIMEOUT] as int)
+                } catch (Exception e) {
+                    tasks.each { it.cancel(true) }
+                    throw e
+                }
+            }
 
-                    //CONNECTION
-                    def attempt = 0, maxAttempt = config[RETRY] as int, delay = FIRST_DELAY
-                    if (maxAttempt <= 0) maxAttempt = 1
-                    def connected = false
-                    while(!connected) {
-                        try {
-                            attempt++
-                            info("Try to connect (attempt n.${attempt})")
-                            connect()
-                            connected = true
-                        } catch (Exception e) {
-                            if (attempt >= maxAttempt) throw new RuntimeException("Unable to connect after $attempt attempt/s", e)
-                            else {
-                                warn("Connection attempt n.${attempt} failed: "+e)
-                                info("Waiting $delay seconds...")
-                                Thread.sleep(delay*1000)
-                                delay *= 2
-                            }
-                        }
-                    }
+            if (config[SHARDS] > 0)
+                Reflection.set(AbstractProcessJob.class, this, "generatedProperties", mergeShardOutputs(shards, config[SHARDS_MERGE]))
+            else
+                generateProperties(outputFile)
+            status = ResourceHistory.SUCCEEDED
 
+        } catch (Exception e) {
 
-                    info("Connected")
+            // I don't know why those files are removed ONLY if job fails...
+            // see try/catch in ProcessJob.run
+            temporaryFiles.add(parametersFile.toPath())
+            temporaryFiles.add(outputFile.toPath())
+            throw new RuntimeException(e)
 
-                    info("Setting up remote environment ")
+        } finally {
+            executor.shutdownNow()
+            history?.record(System.currentTimeMillis() - startMS, channels*.peakHeap.max() ?: -1, status)
+            temporaryFiles.each {
+                try {
+                    info("Deleting $it")
+                    Files.deleteIfExists(it as Path)
+                } catch (Exception e) {
+                    warn("Unable to cleanup file "+it+ " : "+e.getMessage())
+                }
+            }
+        }
 
-                    //init script
-                    if (config[INIT_SCRIPT]) {
-                        prefix("") {
-                            info("Invoking init script ${config[INIT_SCRIPT]}")
-                            def script = Paths.get(config[INIT_SCRIPT]).isAbsolute() ?
-                                    new File(config[INIT_SCRIPT]) : new File(getWorkingDirectory(), config[INIT_SCRIPT])
-                            def remoteScript = ".init-${jobProps.get('azkaban.flow.flowid')}-${jobProps.get('azkaban.flow.execid')}.sh"
-                            remoteFile("./$remoteScript").text = script.getText("UTF-8")
-                            exec "bash $remoteScript"
-                            exec "rm $remoteScript"
-                            info("Init script executed")
-                        }
-                    }
 
-                    //create remote working dir
-                    prefix(config[SUDO] ? "sudo " : "") {
-                        exec "mkdir -p ${config[REMOTE_DIR]}"
-                        if (config[SUDO])
-                            exec "chmod 777 ${config[REMOTE_DIR]}"
-                    }
+    }
 
-                    try {
-                        info("Making a copy of files to be uploaded...")
-                        def tempdir = Files.createTempDirectory("groovy_remote_job")
-                        //we have to exclude the log files, otherwise they will be replaced
-                        //when results are copied back from remote
-                        FileUtils.copyDirectory(new File(getWorkingDirectory()), tempdir.toFile(), {
-                            file ->
-                                !(file.name ==~ /_(flow|job)\..+\.log/) &&
-                                        !(file.name ==~ /java-installer.*/)
-                        } as FileFilter)
-
-                        try {
-                            info("Copying files remotely...")
-                            scp {
-                                from { localDir(tempdir.toFile()) }
-                                into { remoteDir(config[REMOTE_DIR]) }
-                            }
-                        } finally {
-                            info("Deleting temporary copy in $tempdir")
-                            if ( tempdir.deleteDir() )
-                                info("$tempdir deleted")
-                            else
-                                warn("Unable to clean directory $tempdir")
-                        }
-                        // check java installation
-                        def javacheck = exec(failOnError: false, command: 'java -version')
-                        if (javacheck.exitStatus != 0) {
-                            info("No java installation found, now installing")
-                            if (!config[JAVA_INSTALLER]) {
-                                info("Using default java installer")
-                                def embeddedInstaller = extractEmbeddedJavaInstaller()
-                                scp {
-                                    from { localFile embeddedInstaller }
-                                    into { remoteFile "${config[REMOTE_DIR]}/.java-installer.sh" }
-                                }
-                                config[JAVA_INSTALLER] = ".java-installer.sh"
-
-                            } else info("Java installer: " + config[JAVA_INSTALLER])
-
-                            if (!config[SUDO] && config[SUDO_JAVA_INSTALLER])
-                                exec "sudo /bin/bash ${config[JAVA_INSTALLER]}"
-                            else
-                                exec "/bin/bash ${config[JAVA_INSTALLER]}"
-                        }
+    // Heartbeats are checked only while the remote runner is executing the script: before the
+    // first heartbeat we are still setting up the remote environment and after the output has
+    // been received we are just downloading results
+    void checkHeartbeats(List shards, int timeout) {
+        shards.each { shard ->
+            RemoteChannel channel = shard.channel
+            if (channel.lastHeartbeat > 0 && !channel.finished) {
+                def elapsed = (System.currentTimeMillis() - channel.lastHeartbeat).intdiv(1000)
+                if (elapsed > timeout)
+                    throw new Exception("${shard.tag}Lost connection with ${shard[HOST]}: no heartbeat in the last $elapsed seconds")
+            }
+        }
+    }
 
-                        // create launcher script
-                        def launcher = ""
-                        def workingDirAbsolutePath = new File(getWorkingDirectory()).getAbsolutePath();
-                        getEnvironmentVariables().each {
-                            def val = it.value.contains(workingDirAbsolutePath) ?
-                                    it.value.replace(workingDirAbsolutePath, "./") :
-                                    it.value;
+    void handleStreamedMessage(Map config, String message) {
+        def idx = message.indexOf(AzkabanGroovyRunner.STREAM_MARKER)
+        if (idx > 0 && message.substring(0, idx).trim())
+            info("${config.tag}[ssh] " + message.substring(0, idx))
+
+        RemoteChannel channel = config.channel
+        def split = message.substring(idx + AzkabanGroovyRunner.STREAM_MARKER.length()).split(" ", 2)
+        def payload = split.length > 1 ? split[1] : ""
+        channel.lastHeartbeat = System.currentTimeMillis()
+        switch (split[0]) {
+            case "progress":
+                try {
+                    channel.progress = Math.max(0.0d, Math.min(1.0d, payload.trim() as double))
+                } catch (NumberFormatException e) {
+                    warn("${config.tag}Invalid progress received: $payload")
+                }
+                break
+            case "output":
+                channel.output = payload
+                break
+            case "done":
+                channel.finished = true
+                break
+            case "stats":
+                try {
+                    channel.peakHeap = payload.trim() as long
+                } catch (NumberFormatException e) {
+                    warn("${config.tag}Invalid stats received: $payload")
+                }
+                break
+        }
+    }
 
-                            launcher += "export ${it.key}='$val'\n"
-                        }
-                        launcher += "\n${createCommandLine()}\n"
-                        if (config[VERBOSE])
-                            info("Created launcher script: \n" + launcher)
+    // Each shard receives its own copy of the parameters file (with shard.index and shard.count),
+    // its own output file and its own remote working dir, so that shards running on the same host
+    // don't clash. Shard files are created in the local working directory, then they are uploaded
+    // with everything else and the launcher script points the runner to them.
+    List createShards(Map config) {
+        Properties parameters = new Properties()
+        parametersFile.withReader("UTF-8") { parameters.load(it) }
+
+        def count = config[SHARDS] as int
+        def hosts = config[HOSTS] as List
+        info("Sharded execution: $count shard/s on ${hosts.size()} host/s, merge policy: ${config[SHARDS_MERGE]}")
+
+        return (0..<count).collect { int i ->
+            def shardParameters = new Properties()
+            shardParameters.putAll(parameters)
+            shardParameters.put(SHARD_INDEX, i.toString())
+            shardParameters.put(SHARD_COUNT, count.toString())
+
+            def shardParametersFile = new File(parametersFile.parentFile, "shard${i}-${parametersFile.name}")
+            shardParametersFile.withPrintWriter("UTF-8") { shardParameters.store(it, null) }
+            def shardOutputFile = new File(outputFile.parentFile, "shard${i}-${outputFile.name}")
+            temporaryFiles.add(shardParametersFile.toPath())
+            temporaryFiles.add(shardOutputFile.toPath())
+            // the remote dir of the shard is downloaded in its own local folder (see executeRemotely)
+            def localDir = new File(getWorkingDirectory(), "shard$i")
+            temporaryFiles.add(new File(localDir, shardOutputFile.name).toPath())
+            temporaryFiles.add(new File(localDir, shardOutputFile.name + AzkabanGroovyRunner.STATS_SUFFIX).toPath())
+
+            def host = hosts[i % hosts.size()]
+            info("... shard $i assigned to $host")
+            config + [
+                    (HOST): host,
+                    (REMOTE_DIR): shardRemoteDir(config[REMOTE_DIR] as String, i),
+                    tag: "[shard $i] ",
+                    index: i,
+                    localDir: localDir,
+                    env: [
+                            (AbstractProcessJob.JOB_PROP_ENV): shardParametersFile.absolutePath,
+                            (AbstractProcessJob.JOB_OUTPUT_PROP_FILE): shardOutputFile.absolutePath
+                    ],
+                    output: shardOutputFile,
+                    channel: new RemoteChannel()
+            ]
+        }
+    }
 
-                        // launch
-                        info("Running job...")
-                        remoteFile("${config[REMOTE_DIR]}/launcher.sh").text = launcher
-                        exec "/bin/bash launcher.sh"
-                        exec "rm -f launcher.sh $jarfile"
+    static String shardRemoteDir(String remoteDir, int index) {
+        def base = remoteDir.replaceAll('/+$', '')
+        return base in ["", "."] ? "./shard$index".toString() : "$base-shard$index".toString()
+    }
+
+    // Merges the output of all shards, policies:
+    //  - override: in case of conflicts, the shard with the highest index wins
+    //  - first: in case of conflicts, the shard with the lowest index wins
+    //  - prefix: each key is prefixed with shard.<index>. so no conflict is possible
+    //  - strict: the job fails if two shards generate different values for the same key
+    Props mergeShardOutputs(List shards, String policy) {
+        def merged = new Props()
+        shards.each { shard ->
+            File file = shard.output
+            if (!file.exists() || file.length() == 0) {
+                info("${shard.tag}No output generated")
+                return
+            }
+            Map output = file.withReader("UTF-8") { new JsonSlurper().parse(it) } as Map
+            output.each { k, v ->
+                def key = k.toString(), value = v == null ? "" : v.toString()
+                // files of large values are in the local folder of the shard
+                if (OutputReference.isReference(value))
+                    value = OutputReference.PREFIX + "shard${shard.index}/" + value.substring(OutputReference.PREFIX.length())
+                switch (policy) {
+                    case "prefix":
+                        merged.put("shard.${shard.index}.$key".toString(), value)
+                        break
+                    case "first":
+                        if (!merged.containsKey(key)) merged.put(key, value)
+                        break
+                    case "strict":
+                        if (merged.containsKey(key) && merged.get(key) != value)
+                            throw new Exception("Shards generated conflicting values for key '$key': '${merged.get(key)}' / '$value'")
+                        merged.put(key, value)
+                        break
+                    default:
+                        merged.put(key, value)
+                }
+            }
+        }
+        info("Merged output of ${shards.size()} shard/s: ${merged.size()} propertie/s")
+        return merged
+    }
+
+    def executeRemotely(Map config) {
+
+        info("${config.tag}Trying to connect to ${config[HOST]} ...")
+
+        //CONFIGURATION
+        // Configuration in DefaultSsh is not thread-safe!!!! it is static!
+        // so we have to create on our own an SshOptions object and use that
+        // to init the SshDelegate
+
+        def options = sessionOptions {
+            trustUnknownHosts = true
+            verbose = config[VERBOSE]
+            def prefixcmd = "";
+            if (config[REMOTE_DIR] != "./") prefixcmd += "cd ${config[REMOTE_DIR]}; "
+            if (config[SUDO]) prefixcmd += "sudo "
+            execOptions { prefix = prefixcmd }
+            scpOptions { showProgress = false }
+            logger = new com.aestasit.infrastructure.ssh.log.Logger() {
+                @Override void info(String message) {
+                    if (message.contains(AzkabanGroovyRunner.STREAM_MARKER))
+                        GroovyRemoteJob.this.handleStreamedMessage(config, message)
+                    else if (!DISCARD_LOG.matcher(message).matches() )
+                        GroovyRemoteJob.this.info("${config.tag}[ssh] " + message)
+                }
+                @Override void warn(String message) {
+                    GroovyRemoteJob.this.warn("${config.tag}[ssh] " + message)
+                }
+                @Override void debug(String message) {
+                    GroovyRemoteJob.this.debug("${config.tag}[ssh] " + message)
+                }
+            }
+        };
+
+        safeRemoteSession(options) {
+
+            host = config[HOST]
+            port = config[PORT] as int
+            user = config[USERNAME]
+            password = config[PASSWORD]
+            if (config[KEY_FILE]) {
+                if (!Paths.get(config[KEY_FILE]).isAbsolute()) {
+                    keyFile = new File(getWorkingDirectory(), (String) config[KEY_FILE])
+                } else
+                    keyFile = new File(config[KEY_FILE])
+            }
 
-                        info("Execution completed, downloading results...")
-                        scp {
-                            from { remoteDir(config[REMOTE_DIR]) }
-                            into { localDir(getWorkingDirectory()) }
-                        }
 
-                    } finally {
-                        if (config[CLEANUP]) {
-                            try {
-                                info("Cleaning...")
-                                prefix(config[SUDO] ? "sudo " : "") {
-                                    exec "rm -rf ${config[REMOTE_DIR]}"
-                                }
-                                info("Cleaning completed.")
-                            } catch (Exception e) {
-                                warn("Unable to cleanup remote server: "+e.toString())
-                            }
+            //CONNECTION
+            // the health of each host is shared by all the jobs of this executor:
+            // hosts with an open circuit are skipped and we move to the next candidate,
+            // if no candidate is available the job fails immediately
+            def candidates = [config[HOST]] + (config[HOSTS] - config[HOST])
+            def attempt = 0, maxAttempt = config[RETRY] as int
+            if (maxAttempt <= 0) maxAttempt = 1
+            def connected = false, target = null
+            while(!connected) {
+                target = candidates.find { HostHealth.of(it, config[PORT] as int).allowAttempt(config[BREAKER_COOLDOWN] * 1000L) }
+                if (target == null) {
+                    Metrics.inc("remote.connections.failfast")
+                    throw new RuntimeException("Unable to connect: circuit is open for " +
+                            candidates.collect { HostHealth.of(it, config[PORT] as int) }.join(", "))
+                }
+                def health = HostHealth.of(target, config[PORT] as int)
+                try {
+                    attempt++
+                    if (host != target) {
+                        info("${config.tag}Moving to host $target")
+                        host = target
+                    }
+                    info("${config.tag}Try to connect to $target (attempt n.${attempt})")
+                    connect()
+                    health.onSuccess()
+                    connected = true
+                } catch (Exception e) {
+                    if (Thread.currentThread().isInterrupted()) throw e
+                    health.onFailure(config[BREAKER_THRESHOLD] as int)
+                    if (attempt >= maxAttempt) throw new RuntimeException("Unable to connect after $attempt attempt/s", e)
+                    else {
+                        warn("${config.tag}Connection attempt n.${attempt} failed: "+e)
+                        if (health.state == HostHealth.State.OPEN) {
+                            warn("${config.tag}Circuit is now open for $health")
+                        } else {
+                            def delay = backoffDelay(attempt)
+                            info("${config.tag}Waiting ${delay / 1000} seconds...")
+                            Thread.sleep(delay)
                         }
                     }
                 }
+            }
+            config[HOST] = target
 
-            } as Callable)
 
-            task.get()
+            info("${config.tag}Connected")
 
-            generateProperties(outputFile)
+            info("${config.tag}Setting up remote environment ")
 
-        } catch (Exception e) {
+            //init script
+            if (config[INIT_SCRIPT]) {
+                prefix("") {
+                    info("${config.tag}Invoking init script ${config[INIT_SCRIPT]}")
+                    def script = Paths.get(config[INIT_SCRIPT]).isAbsolute() ?
+                            new File(config[INIT_SCRIPT]) : new File(getWorkingDirectory(), config[INIT_SCRIPT])
+                    def remoteScript = ".init-${jobProps.get('azkaban.flow.flowid')}-${jobProps.get('azkaban.flow.execid')}${config.index != null ? '-' + config.index : ''}.sh"
+                    remoteFile("./$remoteScript").text = script.getText("UTF-8")
+                    exec "bash $remoteScript"
+                    exec "rm $remoteScript"
+                    info("${config.tag}Init script executed")
+                }
+            }
 
-            // I don't know why those files are removed ONLY if job fails...
-            // see try/catch in ProcessJob.run
-            temporaryFiles.add(parametersFile.toPath())
-            temporaryFiles.add(outputFile.toPath())
-            throw new RuntimeException(e)
+            //create remote working dir
+            prefix(config[SUDO] ? "sudo " : "") {
+                exec "mkdir -p ${config[REMOTE_DIR]}"
+                if (config[SUDO])
+                    exec "chmod 777 ${config[REMOTE_DIR]}"
+            }
+
+            try {
+                info("${config.tag}Making a copy of files to be uploaded...")
+                def tempdir = Files.createTempDirectory("groovy_remote_job")
+                //we have to exclude the log files, otherwise they will be replaced
+                //when results are copied back from remote
+                FileUtils.copyDirectory(new File(getWorkingDirectory()), tempdir.toFile(), {
+                    file ->
+                        !(file.name ==~ /_(flow|job)\..+\.log/) &&
+                                !(file.name ==~ /java-installer.*/)
+                } as FileFilter)
 
-        } finally {
-            executor.shutdownNow()
-            temporaryFiles.each {
                 try {
-                    info("Deleting $it")
-                    Files.deleteIfExists(it as Path)
-                } catch (Exception e) {
-                    warn("Unable to cleanup file "+it+ " : "+e.getMessage())
+                    info("${config.tag}Copying files remotely...")
+                    scp {
+                        from { localDir(tempdir.toFile()) }
+                        into { remoteDir(config[REMOTE_DIR]) }
+                    }
+                } finally {
+                    info("${config.tag}Deleting temporary copy in $tempdir")
+                    if ( tempdir.deleteDir() )
+                        info("${config.tag}$tempdir deleted")
+                    else
+                        warn("${config.tag}Unable to clean directory $tempdir")
+                }
+                // check java installation
+                def javacheck = exec(failOnError: false, command: 'java -version')
+                if (javacheck.exitStatus != 0) {
+                    info("${config.tag}No java installation found, now installing")
+                    if (!config[JAVA_INSTALLER]) {
+                        info("${config.tag}Using default java installer")
+                        def embeddedInstaller = extractEmbeddedJavaInstaller()
+                        scp {
+                            from { localFile embeddedInstaller }
+                            into { remoteFile "${config[REMOTE_DIR]}/.java-installer.sh" }
+                        }
+                        config[JAVA_INSTALLER] = ".java-installer.sh"
+
+                    } else info("${config.tag}Java installer: " + config[JAVA_INSTALLER])
+
+                    if (!config[SUDO] && config[SUDO_JAVA_INSTALLER])
+                        exec "sudo /bin/bash ${config[JAVA_INSTALLER]}"
+                    else
+                        exec "/bin/bash ${config[JAVA_INSTALLER]}"
+                }
+
+                // create launcher script
+                def launcher = ""
+                def workingDirAbsolutePath = new File(getWorkingDirectory()).getAbsolutePath();
+                (getEnvironmentVariables() + config.env).each {
+                    def val = it.value.contains(workingDirAbsolutePath) ?
+                            it.value.replace(workingDirAbsolutePath, "./") :
+                            it.value;
+
+                    launcher += "export ${it.key}='$val'\n"
+                }
+                def commandLine = createCommandLine()
+                // each shard writes its own recording, named as the other shard files
+                if (config.index != null)
+                    commandLine = commandLine.replace(Profiler.recordingFile(getId()), "shard${config.index}-" + Profiler.recordingFile(getId()))
+                launcher += "\n${commandLine}\n"
+                if (config[VERBOSE])
+                    info("${config.tag}Created launcher script: \n" + launcher)
+
+                // launch
+                info("${config.tag}Running job...")
+                remoteFile("${config[REMOTE_DIR]}/launcher.sh").text = launcher
+                exec "/bin/bash launcher.sh"
+                exec "rm -f launcher.sh $jarfile"
+
+                RemoteChannel channel = config.channel
+                channel.finished = true
+                if (channel.output != null) {
+                    info("${config.tag}Execution completed, output received")
+                    (config.output as File).setText(channel.output, "UTF-8")
+                }
+
+                if (config[DOWNLOAD] || channel.output == null) {
+                    // each shard in its own folder, so that files of different shards don't overwrite each other
+                    File target = config.localDir ?: new File(getWorkingDirectory())
+                    target.mkdirs()
+                    info("${config.tag}Execution completed, downloading results in $target ...")
+                    scp {
+                        from { remoteDir(config[REMOTE_DIR]) }
+                        into { localDir(target) }
+                    }
+                    if (config.localDir && channel.output == null) {
+                        File downloaded = new File(target, (config.output as File).name)
+                        if (downloaded.exists())
+                            Files.copy(downloaded.toPath(), (config.output as File).toPath(), StandardCopyOption.REPLACE_EXISTING)
+                    }
+                } else if (jobProps.getBoolean(Profiler.PROFILE, false)) {
+                    def recording = (config.index != null ? "shard${config.index}-" : "") + Profiler.recordingFile(getId())
+                    info("${config.tag}Downloading JFR recording ${recording}...")
+                    try {
+                        scp {
+                            from { remoteFile("${config[REMOTE_DIR]}/${recording}") }
+                            into { localDir(getWorkingDirectory()) }
+                        }
+                    } catch (Exception e) {
+                        warn("${config.tag}Unable to download JFR recording: " + e.toString())
+                    }
+                }
+
+            } finally {
+                if (config[CLEANUP]) {
+                    try {
+                        info("${config.tag}Cleaning...")
+                        prefix(config[SUDO] ? "sudo " : "") {
+                            exec "rm -rf ${config[REMOTE_DIR]}"
+                        }
+                        info("${config.tag}Cleaning completed.")
+                    } catch (Exception e) {
+                        warn("${config.tag}Unable to cleanup remote server: "+e.toString())
+                    }
                 }
             }
         }
 
-
     }
 
     // Managing working directory:
@@ -443,6 +730,10 @@ class GroovyRemoteJob extends GroovyProcessJob {
 
         info("Updating parameters file to manage working.dir property for remote executor")
 
+        // the remote runner streams back progress, heartbeats and output
+        parameters.put(AzkabanGroovyRunner.STREAM, "true")
+        changed = true
+
         if (parameters.containsKey(WORKING_DIR)) {
             info("... removing "+WORKING_DIR)
             parameters.remove(WORKING_DIR)
@@ -471,10 +762,16 @@ class GroovyRemoteJob extends GroovyProcessJob {
     }
 
 
+    @Override
+    double getProgress() {
+        if (channels.isEmpty()) return 0.0
+        return channels.sum { it.progress } / channels.size()
+    }
+
     @Override
     void cancel() {
-        if (task == null) throw new IllegalStateException("Job is not yet started")
-        def done = task.cancel(true)
+        if (tasks.isEmpty()) throw new IllegalStateException("Job is not yet started")
+        def done = tasks.inject(false) { acc, t -> t.cancel(true) || acc }
         if (!done)
             throw new Exception("Unable to stop the job, it could be already completed.");
     }
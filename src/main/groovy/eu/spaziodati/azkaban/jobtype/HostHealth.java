@@ -0,0 +1,115 @@
+package eu.spaziodati.azkaban.jobtype;
+
+import eu.spaziodati.azkaban.Metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Health record of a remote host, shared by all GroovyRemote jobs of the executor.
+ * It works as a circuit breaker: after a number of consecutive connection failures
+ * the circuit is OPEN and any connection attempt fails immediately; once the cooldown
+ * has elapsed, a single attempt (the recovery probe) is allowed (HALF_OPEN): if it succeeds
+ * the circuit is CLOSED again, otherwise it goes back to OPEN for another cooldown.
+ */
+public class HostHealth {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final ConcurrentMap<String, HostHealth> hosts = new ConcurrentHashMap<>();
+
+    public static HostHealth of(String host, int port) {
+        String name = host + ":" + port;
+        HostHealth health = hosts.get(name);
+        if (health == null) {
+            HostHealth newhealth = new HostHealth(name);
+            health = hosts.putIfAbsent(name, newhealth);
+            if (health == null) {
+                health = newhealth;
+                health.registerGauges();
+            }
+        }
+        return health;
+    }
+
+    private final String name;
+    private final String metricPrefix;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+
+    HostHealth(String name) {
+        this.name = name;
+        this.metricPrefix = "remote.host." + name + ".";
+    }
+
+    private void registerGauges() {
+        Metrics.gauge(metricPrefix + "state", new Metrics.Gauge() {
+            @Override
+            public Object value() {
+                return getState();
+            }
+        });
+        Metrics.gauge(metricPrefix + "consecutiveFailures", new Metrics.Gauge() {
+            @Override
+            public Object value() {
+                return getConsecutiveFailures();
+            }
+        });
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return true if a connection attempt can be made, false if the circuit is open
+     * (or another job is already probing the host)
+     */
+    public synchronized boolean allowAttempt(long cooldownMs) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            default:
+                // in HALF_OPEN, a new probe is allowed only if the previous one
+                // didn't report back within the cooldown (eg. the job was killed)
+                if (System.currentTimeMillis() - openedAt < cooldownMs)
+                    return false;
+                state = State.HALF_OPEN;
+                openedAt = System.currentTimeMillis();
+                Metrics.inc(metricPrefix + "probes");
+                return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN)
+            Metrics.inc(metricPrefix + "probes.succeeded");
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void onFailure(int threshold) {
+        consecutiveFailures++;
+        Metrics.inc(metricPrefix + "failures");
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= threshold)) {
+            if (state == State.CLOSED)
+                Metrics.inc(metricPrefix + "trips");
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " [" + state + ", consecutive failures: " + consecutiveFailures + "]";
+    }
+}
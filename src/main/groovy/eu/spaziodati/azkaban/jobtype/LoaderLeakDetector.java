@@ -0,0 +1,170 @@
+package eu.spaziodati.azkaban.jobtype;
+
+import eu.spaziodati.azkaban.Metrics;
+import org.apache.log4j.Logger;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Keeps a weak reference to the class loader of each Groovy job. Once the job has released
+ * its loader, the loader should be collected at the next collection that unloads classes:
+ * if it is still reachable after the grace period (and after such a collection), the job
+ * that owned it is reported in the executor log and in the metrics (groovy.loaders.leaked).
+ * Collections that unload classes are full collections and concurrent cycles, the latter are
+ * not exposed by every collector (eg. G1 before Java 20): without them, the loader is checked
+ * once it has survived three times the grace period and the old generation has been collected
+ * (its usage after a collection has changed) since it was released.
+ */
+public class LoaderLeakDetector {
+
+    // seconds after the end of the job before a loader still reachable is reported
+    public static final String GRACE = "groovy.leak.grace";
+
+    static final Logger log = Logger.getLogger(LoaderLeakDetector.class);
+    static final long CHECK_INTERVAL = 60;
+
+    static final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+    static final Set<Tracked> tracked = Collections.newSetFromMap(new ConcurrentHashMap<Tracked, Boolean>());
+
+    static final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "GroovyLoaderLeakDetector");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        Metrics.gauge("groovy.loaders.live", new Metrics.Gauge() {
+            @Override
+            public Object value() {
+                return tracked.size();
+            }
+        });
+        Metrics.gauge("jvm.metaspace.used", new Metrics.Gauge() {
+            @Override
+            public Object value() {
+                return metaspaceUsed();
+            }
+        });
+        Metrics.gauge("jvm.classes.loaded", new Metrics.Gauge() {
+            @Override
+            public Object value() {
+                return ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+            }
+        });
+        checker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (Exception e) {
+                    log.warn("Class loader leak check failed", e);
+                }
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    static class Tracked extends WeakReference<ClassLoader> {
+        final String job;
+        volatile long releasedAt = 0;
+        volatile long cycles = 0;
+        volatile long oldUsage = -1;
+        volatile long graceMs = 0;
+        volatile String hint = "";
+        volatile boolean reported = false;
+
+        Tracked(ClassLoader loader, String job) {
+            super(loader, queue);
+            this.job = job;
+        }
+    }
+
+    public static Tracked track(ClassLoader loader, String job) {
+        Tracked t = new Tracked(loader, job);
+        tracked.add(t);
+        Metrics.inc("groovy.loaders.created");
+        return t;
+    }
+
+    /**
+     * The job doesn't use the loader anymore
+     * @param hint why the loader could still be reachable, reported with the leak
+     */
+    public static void released(Tracked t, long graceMs, String hint) {
+        t.graceMs = graceMs;
+        t.hint = hint != null ? hint : "";
+        t.cycles = unloadingCycles();
+        t.oldUsage = oldCollectionUsage();
+        t.releasedAt = System.currentTimeMillis();
+    }
+
+    static void check() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = queue.poll()) != null) {
+            if (tracked.remove(ref))
+                Metrics.inc("groovy.loaders.collected");
+        }
+
+        long now = System.currentTimeMillis();
+        long cycles = unloadingCycles();
+        long oldUsage = oldCollectionUsage();
+        for (Tracked t : tracked) {
+            if (t.releasedAt == 0 || t.reported || now - t.releasedAt < t.graceMs)
+                continue;
+            boolean collected = cycles > t.cycles
+                    || (now - t.releasedAt >= 3 * t.graceMs && oldUsage >= 0 && oldUsage != t.oldUsage);
+            if (!collected)
+                continue;
+            if (t.get() != null) {
+                t.reported = true;
+                Metrics.inc("groovy.loaders.leaked");
+                log.warn("Class loader of job " + t.job + " is still reachable " + (now - t.releasedAt) / 1000
+                        + "s after the end of the job" + (t.hint.length() > 0 ? " (" + t.hint + ")" : ""));
+            }
+        }
+    }
+
+    // full collections and concurrent cycles, for the collectors that report them
+    static long unloadingCycles() {
+        long cycles = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String name = collector.getName();
+            if (name.contains("Old") || name.contains("MarkSweep") || name.contains("Concurrent")
+                    || name.contains("Cycles") || name.contains("Full"))
+                cycles += Math.max(0, collector.getCollectionCount());
+        }
+        return cycles;
+    }
+
+    // usage of the old generation after its last collection (including G1 mixed collections), -1 if unknown
+    static long oldCollectionUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && (pool.getName().contains("Old Gen") || pool.getName().contains("Tenured"))) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                return usage != null ? usage.getUsed() : -1;
+            }
+        }
+        return -1;
+    }
+
+    // Metaspace, or PermGen before Java 8
+    static long metaspaceUsed() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.NON_HEAP && (pool.getName().contains("Metaspace") || pool.getName().contains("Perm Gen")))
+                used += pool.getUsage().getUsed();
+        return used;
+    }
+}
@@ -0,0 +1,157 @@
+package eu.spaziodati.azkaban.jobtype;
+
+import azkaban.utils.Props;
+import eu.spaziodati.azkaban.Metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A named limiter shared by all the Groovy jobs of the executor, to protect a resource
+ * (eg. a database or an API) used by many flows at the same time. It is configured in the
+ * private.properties of the job type:
+ *  groovy.limiter.[name].permits  max number of concurrent holders
+ *  groovy.limiter.[name].rate     max number of acquisitions per second
+ * The configuration is read when the limiter is used for the first time.
+ */
+public class NamedLimiter {
+
+    public static final String PREFIX = "groovy.limiter.";
+
+    private static final ConcurrentMap<String, NamedLimiter> limiters = new ConcurrentHashMap<>();
+
+    final String name;
+    final Semaphore semaphore;
+    final long intervalNanos;
+    private long nextFree = 0;
+
+    NamedLimiter(String name, int permits, double rate) {
+        this.name = name;
+        this.semaphore = permits > 0 ? new Semaphore(permits, true) : null;
+        this.intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+    }
+
+    /**
+     * @param props properties of the job type, job properties are not used so that
+     *              a job can't change the configuration of a shared limiter
+     */
+    public static NamedLimiter of(String name, Props props) {
+        NamedLimiter limiter = limiters.get(name);
+        if (limiter != null)
+            return limiter;
+
+        int permits = props.getInt(PREFIX + name + ".permits", 0);
+        double rate = props.getDouble(PREFIX + name + ".rate", 0);
+        if (permits <= 0 && rate <= 0)
+            throw new IllegalArgumentException("Limiter " + name + " is not configured: set " + PREFIX + name
+                    + ".permits and/or " + PREFIX + name + ".rate in the job type properties");
+
+        limiter = new NamedLimiter(name, permits, rate);
+        NamedLimiter previous = limiters.putIfAbsent(name, limiter);
+        if (previous != null)
+            return previous;
+
+        if (limiter.semaphore != null) {
+            final Semaphore semaphore = limiter.semaphore;
+            Metrics.gauge("limiter." + name + ".available", new Metrics.Gauge() {
+                @Override
+                public Object value() {
+                    return semaphore.availablePermits();
+                }
+            });
+        }
+        return limiter;
+    }
+
+    /**
+     * Waits for a permit (if permits are configured) and for the next slot (if rate is configured)
+     * @param timeoutMs max wait, if less than 1 waits forever
+     */
+    public Hold acquire(long timeoutMs) throws InterruptedException, TimeoutException {
+        long start = System.nanoTime();
+        long deadline = timeoutMs > 0 ? start + TimeUnit.MILLISECONDS.toNanos(timeoutMs) : Long.MAX_VALUE;
+
+        if (semaphore != null) {
+            if (timeoutMs > 0) {
+                if (!semaphore.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                    throw timeout(timeoutMs);
+            } else
+                semaphore.acquire();
+        }
+
+        try {
+            if (intervalNanos > 0) {
+                long wait = reserve(deadline);
+                if (wait < 0)
+                    throw timeout(timeoutMs);
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        } catch (InterruptedException | TimeoutException e) {
+            if (semaphore != null)
+                semaphore.release();
+            throw e;
+        }
+
+        long waited = System.nanoTime() - start;
+        Metrics.inc("limiter." + name + ".acquired");
+        Metrics.add("limiter." + name + ".wait.ms", TimeUnit.NANOSECONDS.toMillis(waited));
+        return new Hold(waited);
+    }
+
+    // reserves the next slot, returns how long to wait for it or -1 if it is after the deadline
+    synchronized long reserve(long deadline) {
+        long now = System.nanoTime();
+        long slot = Math.max(now, nextFree);
+        if (slot > deadline)
+            return -1;
+        nextFree = slot + intervalNanos;
+        return slot - now;
+    }
+
+    TimeoutException timeout(long timeoutMs) {
+        Metrics.inc("limiter." + name + ".timeouts");
+        return new TimeoutException("Limiter " + name + ": not acquired in " + timeoutMs + "ms");
+    }
+
+    /**
+     * An acquired permit. It can be released only once, so that permits still held when
+     * the job ends can be safely released by the job itself.
+     */
+    public class Hold {
+        final long waitNanos;
+        final long acquiredNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        Hold(long waitNanos) {
+            this.waitNanos = waitNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWaitMs() {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        }
+
+        public long getHoldMs() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acquiredNanos);
+        }
+
+        /**
+         * @return false if already released
+         */
+        public boolean release() {
+            if (!released.compareAndSet(false, true))
+                return false;
+            if (semaphore != null)
+                semaphore.release();
+            Metrics.add("limiter." + name + ".hold.ms", getHoldMs());
+            return true;
+        }
+    }
+}
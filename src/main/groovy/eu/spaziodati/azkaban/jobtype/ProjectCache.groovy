@@ -0,0 +1,101 @@
+package eu.spaziodati.azkaban.jobtype
+
+import azkaban.execapp.AzkabanExecutorServer
+import azkaban.project.Project
+import eu.spaziodati.azkaban.Metrics
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Executor-side cache of project metadata, indexed by name and id.
+ * Executors don't have a ProjectManager like the web server, so without
+ * this cache each lookup by name loads all active projects from the database.
+ * Entries expire after a TTL, and are reloaded when a newer version of
+ * the project is detected.
+ */
+class ProjectCache {
+
+    static final ProjectCache instance = new ProjectCache()
+
+    private static class Entry {
+        final Project project
+        final long loadedAt = System.currentTimeMillis()
+
+        Entry(Project project) {
+            this.project = project
+        }
+    }
+
+    private final Map<String, Entry> byName = new ConcurrentHashMap<>()
+    private final Map<Integer, Entry> byId = new ConcurrentHashMap<>()
+    private volatile long allLoadedAt = 0
+
+    Project get(String name, long ttl) {
+        def entry = byName.get(name)
+        if (entry && isFresh(entry.loadedAt, ttl)) {
+            Metrics.inc("project.cache.hits")
+            return entry.project
+        }
+        Metrics.inc("project.cache.misses")
+        // all projects have been loaded recently, and this is not one of them: it may have been
+        // created (or renamed) in the meanwhile, so it is looked up alone, missing ones are not cached
+        if (!entry && isFresh(allLoadedAt, ttl)) {
+            def project = AzkabanExecutorServer.app.projectLoader.fetchProjectByName(name)
+            if (project?.active) put(project)
+            return project?.active ? project : null
+        }
+
+        loadAll()
+        return byName.get(name)?.project
+    }
+
+    Project get(int id, long ttl) {
+        def entry = byId.get(id)
+        if (entry && isFresh(entry.loadedAt, ttl)) {
+            Metrics.inc("project.cache.hits")
+            return entry.project
+        }
+
+        Metrics.inc("project.cache.misses")
+        def project = AzkabanExecutorServer.app.projectLoader.fetchProjectById(id)
+        if (project) put(project)
+        return project
+    }
+
+    /**
+     * Loads again a single project, eg. when a newer version has been detected.
+     * The entry is replaced rather than removed, so that lookups by name don't
+     * take it for a missing project while all the others are still fresh
+     */
+    Project reload(int id) {
+        Metrics.inc("project.cache.misses")
+        def project = AzkabanExecutorServer.app.projectLoader.fetchProjectById(id)
+        def entry = byId.get(id)
+        if (project)
+            put(project)
+        else
+            byId.remove(id)
+        // the project has been renamed or deleted
+        if (entry && entry.project.name != project?.name)
+            byName.remove(entry.project.name)
+        return project
+    }
+
+    private synchronized void loadAll() {
+        List<Project> projects = AzkabanExecutorServer.app.projectLoader.fetchAllActiveProjects()
+        byName.keySet().retainAll(projects*.name)
+        byId.keySet().retainAll(projects*.id)
+        projects.each { put(it) }
+        allLoadedAt = System.currentTimeMillis()
+    }
+
+    private void put(Project project) {
+        def entry = new Entry(project)
+        byName.put(project.name, entry)
+        byId.put(project.id, entry)
+    }
+
+    private static boolean isFresh(long loadedAt, long ttl) {
+        return System.currentTimeMillis() - loadedAt < ttl
+    }
+}
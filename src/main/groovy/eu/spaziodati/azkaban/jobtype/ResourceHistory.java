@@ -0,0 +1,238 @@
+package eu.spaziodati.azkaban.jobtype;
+
+import azkaban.utils.Props;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Resources used by the past executions of a job (wall time, peak heap and status), stored
+ * in a small text file per project/flow/job in the plugin directory of the executor.
+ * With groovy.adaptive=true, the history is used to size the heap of the runner JVM and
+ * to set the timeout of the script.
+ */
+public class ResourceHistory {
+
+    // the folder of the history files, by default the history folder in the plugin dir
+    public static final String HISTORY_DIR = "groovy.history.dir";
+    // the number of executions kept for each job
+    public static final String HISTORY_SIZE = "groovy.history.size";
+    // if true, heap and timeout are derived from the history
+    public static final String ADAPTIVE = "groovy.adaptive";
+    // the minimum number of successful executions required to use the history
+    public static final String ADAPTIVE_MIN_RUNS = "groovy.adaptive.minRuns";
+    public static final String ADAPTIVE_PERCENTILE = "groovy.adaptive.percentile";
+    // max heap = percentile of peak heap * factor, but never less than min (MB)
+    public static final String ADAPTIVE_HEAP_FACTOR = "groovy.adaptive.heap.factor";
+    public static final String ADAPTIVE_HEAP_MIN = "groovy.adaptive.heap.min";
+    // timeout = percentile of wall time * factor, but never less than min (seconds)
+    public static final String ADAPTIVE_TIMEOUT_FACTOR = "groovy.adaptive.timeout.factor";
+    public static final String ADAPTIVE_TIMEOUT_MIN = "groovy.adaptive.timeout.min";
+
+    public static final String SUCCEEDED = "SUCCEEDED";
+    public static final String FAILED = "FAILED";
+
+    // all the jobs of the executor share the same files
+    private static final Object LOCK = new Object();
+
+    static class Run {
+        final long time;
+        final long wallMs;
+        final long peakHeap;
+        final String status;
+
+        Run(long time, long wallMs, long peakHeap, String status) {
+            this.time = time;
+            this.wallMs = wallMs;
+            this.peakHeap = peakHeap;
+            this.status = status;
+        }
+
+        static Run parse(String line) {
+            String[] fields = line.split("\t");
+            return new Run(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]);
+        }
+
+        String format() {
+            return time + "\t" + wallMs + "\t" + peakHeap + "\t" + status;
+        }
+    }
+
+    private final File file;
+    private final Props props;
+    private final Logger log;
+
+    ResourceHistory(File file, Props props, Logger log) {
+        this.file = file;
+        this.props = props;
+        this.log = log;
+    }
+
+    /**
+     * @param props job properties, including the ones of the job type (see private.properties)
+     * @return null if there is no folder for the history
+     */
+    public static ResourceHistory of(Props props, String jobId, Logger log) {
+        String dir = props.getString(HISTORY_DIR, null);
+        if (dir == null && props.containsKey("plugin.dir"))
+            dir = new File(props.getString("plugin.dir"), "history").getPath();
+        if (dir == null)
+            return null;
+
+        File file = new File(new File(new File(dir, name(props.getString("azkaban.flow.projectname", "default"))),
+                name(props.getString("azkaban.flow.flowid", "default"))), name(jobId) + ".tsv");
+        return new ResourceHistory(file, props, log);
+    }
+
+    public void record(long wallMs, long peakHeap, String status) {
+        int size = props.getInt(HISTORY_SIZE, 50);
+        synchronized (LOCK) {
+            try {
+                List<String> lines = new ArrayList<>();
+                for (Run r : load())
+                    lines.add(r.format());
+                lines.add(new Run(System.currentTimeMillis(), wallMs, peakHeap, status).format());
+                if (lines.size() > size)
+                    lines = lines.subList(lines.size() - size, lines.size());
+
+                file.getParentFile().mkdirs();
+                File tmp = new File(file.getPath() + ".tmp");
+                Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+                if (!tmp.renameTo(file))
+                    throw new IOException("unable to rename " + tmp);
+            } catch (Exception e) {
+                log.warn("Unable to update execution history " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    List<Run> load() {
+        List<Run> runs = new ArrayList<>();
+        synchronized (LOCK) {
+            if (!file.exists())
+                return runs;
+            try {
+                for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+                    if (line.trim().length() > 0)
+                        runs.add(Run.parse(line));
+            } catch (Exception e) {
+                log.warn("Unable to read execution history " + file + ": " + e.getMessage());
+            }
+        }
+        return runs;
+    }
+
+    public boolean isAdaptive() {
+        return props.getBoolean(ADAPTIVE, false);
+    }
+
+    /**
+     * @return the max heap for the runner JVM (eg. 512M) or null if there are not enough executions
+     */
+    public String adaptiveMaxHeap() {
+        List<Long> peaks = new ArrayList<>();
+        for (Run r : successful())
+            if (r.peakHeap > 0)
+                peaks.add(r.peakHeap);
+        if (peaks.size() < props.getInt(ADAPTIVE_MIN_RUNS, 3)) {
+            log.info("Adaptive heap: " + peaks.size() + " executions with peak heap in history, using the configured heap");
+            return null;
+        }
+
+        long peak = percentile(peaks, props.getDouble(ADAPTIVE_PERCENTILE, 95));
+        long mb = Math.max(props.getLong(ADAPTIVE_HEAP_MIN, 64),
+                (long) Math.ceil(peak * props.getDouble(ADAPTIVE_HEAP_FACTOR, 1.5) / (1024 * 1024)));
+        log.info("Adaptive heap: -Xmx" + mb + "M (peak " + (peak / (1024 * 1024)) + "MB over " + peaks.size() + " executions)");
+        return mb + "M";
+    }
+
+    /**
+     * @param configured the max heap set explicitly for the job, or null
+     * @return the max heap to use: the adaptive one capped by the configured one, or null
+     * if there are not enough executions and the configured (or default) heap is used
+     */
+    public String adaptiveMaxHeap(String configured) {
+        String adaptive = adaptiveMaxHeap();
+        if (adaptive == null || configured == null)
+            return adaptive;
+        if (megabytes(configured) < megabytes(adaptive)) {
+            log.info("Adaptive heap: using the configured -Xmx" + configured + ", lower than the adaptive one");
+            return configured;
+        }
+        log.info("Adaptive heap: using -Xmx" + adaptive + ", within the configured -Xmx" + configured);
+        return adaptive;
+    }
+
+    /**
+     * @param configured the timeout in seconds set explicitly for the job, or 0
+     * @return the timeout to use: the adaptive one capped by the configured one
+     */
+    public int adaptiveTimeout(int configured) {
+        int adaptive = adaptiveTimeout();
+        if (adaptive <= 0)
+            return configured;
+        if (configured > 0 && configured < adaptive) {
+            log.info("Adaptive timeout: using the configured timeout " + configured + "s, lower than the adaptive one");
+            return configured;
+        }
+        log.info("Adaptive timeout: using " + adaptive + "s" + (configured > 0 ? ", within the configured " + configured + "s" : ""));
+        return adaptive;
+    }
+
+    /**
+     * @return the timeout in seconds or 0 if there are not enough executions
+     */
+    public int adaptiveTimeout() {
+        List<Long> times = new ArrayList<>();
+        for (Run r : successful())
+            times.add(r.wallMs);
+        if (times.size() < props.getInt(ADAPTIVE_MIN_RUNS, 3)) {
+            log.info("Adaptive timeout: " + times.size() + " executions in history, using the configured timeout");
+            return 0;
+        }
+
+        long wall = percentile(times, props.getDouble(ADAPTIVE_PERCENTILE, 95));
+        int timeout = (int) Math.max(props.getInt(ADAPTIVE_TIMEOUT_MIN, 60),
+                Math.ceil(wall * props.getDouble(ADAPTIVE_TIMEOUT_FACTOR, 3) / 1000));
+        log.info("Adaptive timeout: " + timeout + "s (duration " + (wall / 1000) + "s over " + times.size() + " executions)");
+        return timeout;
+    }
+
+    List<Run> successful() {
+        List<Run> runs = new ArrayList<>();
+        for (Run r : load())
+            if (SUCCEEDED.equals(r.status))
+                runs.add(r);
+        return runs;
+    }
+
+    // a JVM memory size (eg. 512m, 2G, 1048576) in MB
+    static long megabytes(String size) {
+        String s = size.trim().toLowerCase();
+        char unit = s.charAt(s.length() - 1);
+        long value = Character.isDigit(unit) ? Long.parseLong(s) : Long.parseLong(s.substring(0, s.length() - 1));
+        switch (unit) {
+            case 'k': return value / 1024;
+            case 'm': return value;
+            case 'g': return value * 1024;
+            case 't': return value * 1024 * 1024;
+            default: return value / (1024 * 1024);
+        }
+    }
+
+    // nearest-rank percentile
+    static long percentile(List<Long> values, double p) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(p / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank - 1)));
+    }
+
+    static String name(String s) {
+        return s.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
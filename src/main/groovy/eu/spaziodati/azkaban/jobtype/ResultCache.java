@@ -0,0 +1,298 @@
+package eu.spaziodati.azkaban.jobtype;
+
+import azkaban.utils.Props;
+import eu.spaziodati.azkaban.CommandScript;
+import eu.spaziodati.azkaban.Metrics;
+import eu.spaziodati.azkaban.OutputReference;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Memoization of deterministic jobs: the output of the job (and its declared output files) is
+ * stored in a content-addressed folder named after the hash of the inputs of the job, that are
+ *  (a) the script (or the commands) and the groovy sources in the classpath
+ *  (b) the compiler options
+ *  (c) groovy.cache.key, if any
+ *  (d) the properties and files listed in groovy.cache.inputs
+ * When the same inputs are found, the stored output is returned without running the script.
+ * Forwarded parameters are never stored, they are computed again by each execution.
+ * Entries not used for groovy.cache.maxAge days are removed, as well as the least recently
+ * used ones when the store exceeds groovy.cache.maxSize MB.
+ */
+public class ResultCache {
+
+    // any value, changing it invalidates the stored results
+    public static final String KEY = "groovy.cache.key";
+    // comma separated list of property names and files (prefixed by file:) the result depends on
+    public static final String INPUTS = "groovy.cache.inputs";
+    // comma separated list of files (relative to the working dir) created by the job
+    public static final String OUTPUTS = "groovy.cache.outputs";
+    // the folder of the store, by default the cache folder in the plugin dir
+    public static final String DIR = "groovy.cache.dir";
+    // max size of the store in MB, by default 1024
+    public static final String MAX_SIZE = "groovy.cache.maxSize";
+    // entries not used for this number of days are removed, by default 30
+    public static final String MAX_AGE = "groovy.cache.maxAge";
+
+    static final String FILE_PREFIX = "file:";
+    static final String OUTPUT_PROPERTIES = "output.properties";
+    static final String FILES = "files";
+    static final String TMP = ".tmp-";
+    // the store is checked at most once in this interval by each JVM
+    static final long EVICTION_INTERVAL = 10 * 60 * 1000;
+    static volatile long lastEviction = 0;
+
+    private final File entry;
+    private final File workdir;
+    private final Props props;
+    private final Logger log;
+
+    ResultCache(File entry, File workdir, Props props, Logger log) {
+        this.entry = entry;
+        this.workdir = workdir;
+        this.props = props;
+        this.log = log;
+    }
+
+    /**
+     * @param props job properties, including the ones of the job type (see private.properties)
+     * @return null if the cache is not enabled for this job
+     */
+    public static ResultCache of(String jobType, Props props, File workdir, Logger log) throws IOException {
+        if (!props.containsKey(KEY) && !props.containsKey(INPUTS))
+            return null;
+
+        String dir = props.getString(DIR, null);
+        if (dir == null && props.containsKey("plugin.dir"))
+            dir = new File(props.getString("plugin.dir"), "cache").getPath();
+        if (dir == null) {
+            log.warn("No folder for the result cache, set " + DIR);
+            return null;
+        }
+
+        String hash = hash(jobType, props, workdir, log);
+        log.info("Result cache key: " + hash);
+        return new ResultCache(new File(dir, hash), workdir, props, log);
+    }
+
+    static String hash(String jobType, Props props, File workdir, Logger log) throws IOException {
+        MessageDigest digest = digest();
+        update(digest, "type", jobType);
+        update(digest, KEY, props.getString(KEY, ""));
+
+        Map<String, String> commands = props.getMapByPrefix(GroovyJob.COMMAND);
+        update(digest, GroovyJob.COMMAND, commands.isEmpty() ? "" : CommandScript.text(commands));
+        for (String key : Arrays.asList(GroovyJob.SCRIPT, GroovyJob.CLASSPATH, "groovy.compileStatic", "groovy.indy"))
+            update(digest, key, props.getString(key, ""));
+
+        for (File dir : classpath(props, workdir))
+            for (File source : sources(dir))
+                updateFile(digest, source, dir);
+        String config = props.getString("groovy.compilerConfig", null);
+        if (config != null && new File(workdir, config).isFile())
+            updateFile(digest, new File(workdir, config), workdir);
+
+        for (String input : split(props.getString(INPUTS, ""))) {
+            if (input.startsWith(FILE_PREFIX)) {
+                File file = new File(workdir, input.substring(FILE_PREFIX.length()));
+                if (file.isDirectory()) {
+                    for (File f : FileUtils.listFiles(file, null, true))
+                        updateFile(digest, f, workdir);
+                } else if (file.isFile())
+                    updateFile(digest, file, workdir);
+                else {
+                    log.warn("Cache input " + input + " not found");
+                    update(digest, input, "<missing>");
+                }
+            } else
+                // values written in files by previous jobs are hashed by content
+                update(digest, input, OutputReference.resolve(props.getString(input, "<missing>"), workdir));
+        }
+
+        return hex(digest.digest());
+    }
+
+    /**
+     * Copies the stored files in the working dir
+     * @return the stored output, or null if no result has been stored for these inputs
+     */
+    public Props lookup() throws IOException {
+        if (!new File(entry, OUTPUT_PROPERTIES).isFile()) {
+            Metrics.inc("groovy.cache.misses");
+            return null;
+        }
+
+        Properties output = new Properties();
+        try {
+            try (Reader reader = Files.newBufferedReader(new File(entry, OUTPUT_PROPERTIES).toPath(), StandardCharsets.UTF_8)) {
+                output.load(reader);
+            }
+            File files = new File(entry, FILES);
+            if (files.isDirectory())
+                FileUtils.copyDirectory(files, workdir);
+        } catch (IOException e) {
+            // the entry may have been evicted in the meanwhile
+            log.warn("Unable to read cached result from " + entry + ", the script is executed: " + e.getMessage());
+            Metrics.inc("groovy.cache.misses");
+            return null;
+        }
+        // the last modification time of the entry is its last use, see evict()
+        entry.setLastModified(System.currentTimeMillis());
+
+        Metrics.inc("groovy.cache.hits");
+        log.info("Found cached result in " + entry + ", the script is not executed");
+
+        Map<String, String> map = new HashMap<>();
+        for (String key : output.stringPropertyNames())
+            map.put(key, output.getProperty(key));
+        return new Props(null, map);
+    }
+
+    /**
+     * Stores the output and the declared output files (including the files of spilled output values)
+     */
+    public void store(Props output) {
+        File tmp = new File(entry.getParentFile(), entry.getName() + TMP + UUID.randomUUID());
+        try {
+            tmp.mkdirs();
+            Properties properties = new Properties();
+            Set<String> files = new LinkedHashSet<>(split(props.getString(OUTPUTS, "")));
+            if (output != null) {
+                for (String key : output.getKeySet()) {
+                    String value = output.get(key);
+                    properties.setProperty(key, value);
+                    if (OutputReference.isReference(value))
+                        files.add(value.substring(OutputReference.PREFIX.length()));
+                }
+            }
+
+            for (String name : files) {
+                File file = new File(workdir, name);
+                if (file.isDirectory())
+                    FileUtils.copyDirectory(file, new File(tmp, FILES + "/" + name));
+                else if (file.isFile())
+                    FileUtils.copyFile(file, new File(tmp, FILES + "/" + name));
+                else
+                    throw new IOException("output file " + name + " not found");
+            }
+
+            try (Writer writer = Files.newBufferedWriter(new File(tmp, OUTPUT_PROPERTIES).toPath(), StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+
+            // another execution may have stored the same result in the meanwhile
+            if (!entry.exists())
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Metrics.inc("groovy.cache.stores");
+            log.info("Result stored in cache " + entry);
+        } catch (Exception e) {
+            log.warn("Unable to store the result in cache: " + e.getMessage());
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+        evict();
+    }
+
+    /**
+     * Removes the entries not used for MAX_AGE days, then the least recently used
+     * ones until the store is smaller than MAX_SIZE
+     */
+    void evict() {
+        long now = System.currentTimeMillis();
+        if (now - lastEviction < EVICTION_INTERVAL)
+            return;
+        lastEviction = now;
+
+        long maxAge = props.getLong(MAX_AGE, 30) * 24 * 3600 * 1000;
+        long maxSize = props.getLong(MAX_SIZE, 1024) * 1024 * 1024;
+        File[] entries = entry.getParentFile().listFiles();
+        if (entries == null)
+            return;
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o2.lastModified(), o1.lastModified());
+            }
+        });
+
+        long size = 0;
+        int evicted = 0;
+        for (File e : entries) {
+            if (!e.isDirectory())
+                continue;
+            // stores still in progress are left alone
+            if (e.getName().contains(TMP) && now - e.lastModified() < maxAge)
+                continue;
+            long entrySize = FileUtils.sizeOfDirectory(e);
+            if (now - e.lastModified() > maxAge || (maxSize > 0 && size + entrySize > maxSize)) {
+                FileUtils.deleteQuietly(e);
+                evicted++;
+            } else
+                size += entrySize;
+        }
+        if (evicted > 0) {
+            Metrics.add("groovy.cache.evictions", evicted);
+            log.info("Removed " + evicted + " entries from the result cache, " + size / (1024 * 1024) + "MB left");
+        }
+    }
+
+    static List<File> classpath(Props props, File workdir) {
+        List<File> dirs = new ArrayList<>();
+        for (String path : props.getString(GroovyJob.CLASSPATH, "").split(":")) {
+            if (path.trim().length() == 0)
+                continue;
+            File f = new File(path);
+            dirs.add(f.isAbsolute() ? f : new File(workdir, path));
+        }
+        dirs.add(workdir);
+        return dirs;
+    }
+
+    // groovy sources, sorted so that the hash doesn't depend on the listing order
+    static List<File> sources(File dir) {
+        if (!dir.isDirectory())
+            return Collections.emptyList();
+        List<File> files = new ArrayList<>(FileUtils.listFiles(dir, new String[]{"groovy"}, true));
+        Collections.sort(files);
+        return files;
+    }
+
+    static void update(MessageDigest digest, String key, String value) {
+        digest.update((key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void updateFile(MessageDigest digest, File file, File base) throws IOException {
+        update(digest, "file", base.toURI().relativize(file.toURI()).getPath());
+        digest.update(Files.readAllBytes(file.toPath()));
+    }
+
+    static List<String> split(String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(","))
+            if (item.trim().length() > 0)
+                items.add(item.trim());
+        return items;
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
@@ -3,14 +3,12 @@ package eu.spaziodati.azkaban.jobtype
 import azkaban.execapp.AzkabanExecutorServer
 import azkaban.execapp.FlowRunner
 import azkaban.execapp.JobRunner
-import azkaban.event.Event
-import azkaban.spi.EventType
-import azkaban.event.EventListener
 import azkaban.executor.ExecutionOptions
 import azkaban.flow.CommonJobProperties
 import azkaban.utils.Props
 import azkaban.utils.UndefinedPropertyException
 import azkaban.webapp.AzkabanWebServer
+import eu.spaziodati.azkaban.Metrics
 import groovy.json.JsonOutput
 import groovy.json.JsonSlurper
 import org.apache.http.NameValuePair
@@ -21,24 +19,75 @@ import org.apache.http.client.methods.HttpPost
 import org.apache.http.client.utils.URIBuilder
 import org.apache.http.impl.client.BasicResponseHandler
 import org.apache.http.impl.client.DefaultHttpClient
+import org.apache.http.impl.conn.PoolingClientConnectionManager
 import org.apache.http.message.BasicNameValuePair
 import org.apache.log4j.WriterAppender
 
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
 
 public class ScriptHelper {
 
     static final def EXECUTE_ENDPOINT = "groovy.execute.endpoint"
     static final def EXECUTE_USERNAME = "groovy.execute.username"
     static final def EXECUTE_PASSWORD = "groovy.execute.password"
+    // seconds after which cached project metadata are reloaded (executor only)
+    static final def PROJECT_CACHE_TTL = "groovy.project.cache.ttl"
+    // seconds between two checks of the status of flows submitted with executeAsync
+    static final def EXECUTE_POLL_INTERVAL = "groovy.execute.poll.interval"
+    // max number of threads used by each parallel block, by default the number of processors
+    static final def PARALLEL_THREADS = "groovy.parallel.threads"
+
+    // a single pooled client shared by all scripts, with the session ids of the users
+    // already logged in (key is endpoint|username|hash of the password, so that a job can't
+    // reuse the session of another user without knowing the password): a new login is done
+    // only when the web server reports that the session is expired
+    static final HttpClient httpClient = createHttpClient()
+    static final Map<String, String> sessions = new ConcurrentHashMap<>()
+    // one lock for each key, so that concurrent jobs of the same user log in only once
+    static final ConcurrentHashMap<String, Object> sessionLocks = new ConcurrentHashMap<>()
+
+    static HttpClient createHttpClient() {
+        def connectionManager = new PoolingClientConnectionManager()
+        connectionManager.setMaxTotal(20)
+        connectionManager.setDefaultMaxPerRoute(10)
+        return new DefaultHttpClient(connectionManager)
+    }
 
     FlowRunner flowrunner
     JobRunner jobrunner
     Props props
+    // properties of the job type only (private.properties), null outside of the executor
+    Props sysProps
+    AtomicReference<Double> progress
+    // if set, helper threads are accounted to the job
+    ThreadUsage threadUsage
+    // flow finish handlers registered by the job, they keep the classes of the script alive
+    final AtomicInteger onfinishHandlers = new AtomicInteger()
+    // permits of named limiters currently held by the job
+    final Set<NamedLimiter.Hold> holds = Collections.newSetFromMap(new ConcurrentHashMap<NamedLimiter.Hold, Boolean>())
 
     public ScriptHelper(FlowRunner flowrunner, JobRunner jobrunner, Props props) {
+        this(flowrunner, jobrunner, props, new AtomicReference<Double>(0.0d))
+    }
+
+    public ScriptHelper(FlowRunner flowrunner, JobRunner jobrunner, Props props, AtomicReference<Double> progress) {
         this.flowrunner = flowrunner
         this.jobrunner = jobrunner
         this.props = props
+        this.progress = progress
     }
 
     def execute(String flowid, Map params = [:], ExecutionOptions options = null) {
@@ -47,56 +96,137 @@ public class ScriptHelper {
 
     def execute(String projectName, String flowid, Map params = [:], ExecutionOptions options = null) {
 
-        def http = new DefaultHttpClient();
-        try {
-            String sessionid = login(http)
+        projectName = projectName?: fetchProject(flowrunner.executableFlow.projectId).name
 
-            def endpoint = systemProp(EXECUTE_ENDPOINT)
-            projectName = projectName?: fetchProject(flowrunner.executableFlow.projectId).name
+        log("Trying to execute flow '$flowid' of project '$projectName' ...")
 
-            log("Trying to execute flow '$flowid' of project '$projectName' ...")
+        def parameters = [
+                new BasicNameValuePair("ajax", "executeFlow"),
+                new BasicNameValuePair("project", projectName),
+                new BasicNameValuePair("flow", flowid)
+        ]
 
-            def uri = new URIBuilder(endpoint)
-            uri.setPath(uri.getPath() + "/executor")
-                .addParameter("session.id", sessionid)
-                .addParameter("ajax", "executeFlow")
-                .addParameter("project", projectName)
-                .addParameter("flow", flowid)
-
-            if (options) {
-                if (options.disabledJobs)
-                    uri.addParameter(ExecutionOptions.DISABLE, JsonOutput.toJson(options.disabledJobs))
-                if (options.successEmails) {
-                    uri.addParameter(ExecutionOptions.SUCCESS_EMAILS, options.successEmails.join(","))
-                    uri.addParameter(ExecutionOptions.SUCCESS_EMAILS_OVERRIDE, "true")
-                }
-                if (options.failureEmails) {
-                    uri.addParameter(ExecutionOptions.FAILURE_EMAILS, options.failureEmails.join(","))
-                    uri.addParameter(ExecutionOptions.FAILURE_EMAILS_OVERRIDE, "true")
-                }
-                
-                // TODO add other parameters: http://azkaban.github.io/azkaban/docs/2.5/#api-execute-a-flow
+        if (options) {
+            if (options.disabledJobs)
+                parameters << new BasicNameValuePair(ExecutionOptions.DISABLE, JsonOutput.toJson(options.disabledJobs))
+            if (options.successEmails) {
+                parameters << new BasicNameValuePair(ExecutionOptions.SUCCESS_EMAILS, options.successEmails.join(","))
+                parameters << new BasicNameValuePair(ExecutionOptions.SUCCESS_EMAILS_OVERRIDE, "true")
             }
-            if (params)
-                params.each { k,v -> uri.addParameter("flowOverride[$k]", v.toString()) }
+            if (options.failureEmails) {
+                parameters << new BasicNameValuePair(ExecutionOptions.FAILURE_EMAILS, options.failureEmails.join(","))
+                parameters << new BasicNameValuePair(ExecutionOptions.FAILURE_EMAILS_OVERRIDE, "true")
+            }
+
+            // TODO add other parameters: http://azkaban.github.io/azkaban/docs/2.5/#api-execute-a-flow
+        }
+        if (params)
+            params.each { k,v -> parameters << new BasicNameValuePair("flowOverride[$k]", v.toString()) }
 
+        try {
+            def result = ajax("/executor", parameters)
+            log("Execution of flow '$flowid' of project '$projectName' successfully submitted:\n ${JsonOutput.prettyPrint(JsonOutput.toJson(result))}")
+            return result
+        } catch (Exception e) {
+            throw new Exception("Error while sending execution command to executor: $e", e);
+        }
+    }
+
+    FlowExecution executeAsync(String flowid, Map params = [:], ExecutionOptions options = null) {
+        executeAsync("", flowid, params, options)
+    }
+
+    /**
+     * Submits the flow (see execute) and returns a handle that can be
+     * used to wait for the execution to finish
+     */
+    FlowExecution executeAsync(String projectName, String flowid, Map params = [:], ExecutionOptions options = null) {
+        def result = execute(projectName, flowid, params, options)
+        def execution = new FlowExecution(this, result.execid as int, (String) result.project ?: projectName, flowid)
+        return FlowStatusPoller.instance.watch(execution, props.getLong(EXECUTE_POLL_INTERVAL, 10))
+    }
+
+    /**
+     * Waits for all the executions to finish, at most for the given timeout.
+     * Returns true if all executions have finished, false if the timeout has elapsed
+     */
+    boolean awaitAll(Collection<FlowExecution> executions, long timeout = 0, TimeUnit unit = TimeUnit.SECONDS) {
+        def deadline = System.nanoTime() + unit.toNanos(timeout)
+        for (FlowExecution execution : executions) {
+            if (timeout <= 0) {
+                execution.get()
+                continue
+            }
+            def left = deadline - System.nanoTime()
+            if (left <= 0 && !execution.isDone()) return false
             try {
-                def response = http.execute(new HttpGet(uri.build()), new BasicResponseHandler())
-                def result = new JsonSlurper().parseText(response)
-                if (!result) throw new Exception("No body returned")
-                if (result.error) throw new Exception((String)result.error)
+                execution.get(Math.max(left, 0), TimeUnit.NANOSECONDS)
+            } catch (TimeoutException e) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Submits many flows, reusing the same session and connection.
+     * Each element of the list is a map with keys: flow (required), project, params, options.
+     * It returns the list of the results of each submission
+     */
+    def executeAll(List<Map> flows) {
+        flows.collect {
+            execute((String) it.project ?: "", (String) it.flow, (Map) it.params ?: [:], (ExecutionOptions) it.options)
+        }
+    }
 
-                log("Execution of flow '$flowid' of project '$projectName' successfully submitted:\n ${JsonOutput.prettyPrint(response)}")
+    /**
+     * Invokes an ajax API of the web server, using the cached session:
+     * if the session has expired, it logs in again and retries
+     */
+    def ajax(String path, List<NameValuePair> parameters) {
+        def endpoint = systemProp(EXECUTE_ENDPOINT)
+        String sessionid = null
+        for (def renew : [false, true]) {
+            sessionid = session(renew, sessionid)
+            def uri = new URIBuilder(endpoint)
+            uri.setPath(uri.getPath() + path)
+                .addParameter("session.id", sessionid)
+            parameters.each { uri.addParameter(it.name, it.value) }
 
-            } catch (Exception e) {
-                throw new Exception("Error while sending execution command to executor: $e", e);
+            def response = httpClient.execute(new HttpGet(uri.build()), new BasicResponseHandler())
+            def result = new JsonSlurper().parseText(response)
+            if (!result) throw new Exception("No body returned")
+            if (result.error == "session" && !renew) {
+                log("Session expired, logging in again...")
+                continue
             }
-        } finally {
-            try { http.getConnectionManager().shutdown();}
-            catch (Exception e) {}
+            if (result.error) throw new Exception((String)result.error)
+            return result
         }
     }
 
+    String session(boolean renew = false, String expired = null) {
+        def key = sessionKey()
+        sessionLocks.putIfAbsent(key, new Object())
+        synchronized (sessionLocks.get(key)) {
+            // another thread may have already renewed the expired session
+            if (renew && (expired == null || sessions.get(key) == expired))
+                sessions.remove(key)
+            def sessionid = sessions.get(key)
+            if (!sessionid) {
+                sessionid = login(httpClient)
+                sessions.put(key, sessionid)
+            }
+            return sessionid
+        }
+    }
+
+    String sessionKey() {
+        def password = systemProp(EXECUTE_PASSWORD).toString()
+        def hash = MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8)).encodeHex()
+        return systemProp(EXECUTE_ENDPOINT) + "|" + systemProp(EXECUTE_USERNAME) + "|" + hash
+    }
+
     def login(HttpClient client) {
         def endpoint = systemProp(EXECUTE_ENDPOINT)
         def username = systemProp(EXECUTE_USERNAME)
@@ -132,14 +262,33 @@ public class ScriptHelper {
     def fetchProject(String name) {
         if (AzkabanWebServer.app)
             return AzkabanWebServer.app.projectManager.getProject(name)
-        else
-            return AzkabanExecutorServer.app.projectLoader.fetchAllActiveProjects().find { it.name == name}
+        else {
+            def project = ProjectCache.instance.get(name, projectCacheTtl())
+            if (project && isOutdated(project))
+                project = ProjectCache.instance.reload(project.id)
+            return project
+        }
     }
     def fetchProject(int id) {
         if (AzkabanWebServer.app)
             return AzkabanWebServer.app.projectManager.getProject(id)
-        else
-            return AzkabanExecutorServer.app.projectLoader.fetchProjectById(id)
+        else {
+            def project = ProjectCache.instance.get(id, projectCacheTtl())
+            if (project && isOutdated(project))
+                project = ProjectCache.instance.reload(id)
+            return project
+        }
+    }
+
+    long projectCacheTtl() {
+        return props.getLong(PROJECT_CACHE_TTL, 300) * 1000
+    }
+
+    // the running flow tells us a version of its own project: if the cached one is older,
+    // a new version has been uploaded (a flow may still run an older version than the cached one)
+    boolean isOutdated(project) {
+        def flow = flowrunner?.executableFlow
+        return flow && project.id == flow.projectId && project.version < flow.version
     }
 
     def log(String msg, Exception e = null) {
@@ -158,6 +307,14 @@ public class ScriptHelper {
     }
 
     def onfinish (Closure c) {
+        onfinish([:], c)
+    }
+
+    /**
+     * Options: async (default false) if true, the closure is executed in a separate thread,
+     * so the flow runner is not blocked, but errors won't affect the status of the flow
+     */
+    def onfinish (Map options, Closure c) {
         //this is not reliable, i don't know why. It looks like the parentFlow is shared
         //even if two jobs are executed in different branches
         //  def myFlowid = jobrunner.getNode().getParentFlow().nestedId;
@@ -169,42 +326,143 @@ public class ScriptHelper {
             myFlowid = jobrunner.getNode().getParentFlow().getFlowId()
         }
 
-        this.onfinishFlow(myFlowid, c)
+        this.onfinishFlow(options, myFlowid, c)
     }
 
     def onfinishFlow (String flowId, Closure c) {
+        onfinishFlow([:], flowId, c)
+    }
+
+    def onfinishFlow (Map options, String flowId, Closure c) {
         flowrunner.logger.info("Registering onFinish trigger to handle flowId `${flowId}`")
+        FlowFinishDispatcher.of(flowrunner).register(flowId, c, options.async as boolean)
+        onfinishHandlers.incrementAndGet()
+    }
+
+    def register(Closure c) {
+        onfinish(c)
+    }
+
+    /**
+     * Parallel helpers: closures are executed by a pool of at most groovy.parallel.threads threads
+     * (or option threads), the calling thread waits for all of them and gets the results in order.
+     * If the job is cancelled or times out, running closures are interrupted; if a closure fails,
+     * the others are interrupted and the error is raised.
+     * Each completed closure adds its share to the progress of the job: by default the whole block
+     * covers the remaining progress, use option progress to set the fraction covered by the block.
+     */
+    List parallel(Closure... tasks) {
+        parallel([:], tasks)
+    }
+
+    List parallel(Map options, Closure... tasks) {
+        runParallel(options, tasks as List)
+    }
+
+    void eachParallel(Collection items, Closure c) {
+        eachParallel([:], items, c)
+    }
+
+    void eachParallel(Map options, Collection items, Closure c) {
+        runParallel(options, items.collect { item -> { -> c.call(item) } })
+    }
+
+    List collectParallel(Collection items, Closure c) {
+        collectParallel([:], items, c)
+    }
+
+    List collectParallel(Map options, Collection items, Closure c) {
+        runParallel(options, items.collect { item -> { -> c.call(item) } })
+    }
+
+    List runParallel(Map options, List<Closure> tasks) {
+        if (!tasks) return []
 
-        EventListener listener = new EventListener() {
-            def done = false
-            public void handleEvent(Event event) {
-
-                if (!done && event.type == EventType.JOB_FINISHED) {
-                    flowrunner.logger.info("Flow `${event.data.nestedId}` FINISHED, checking for onFinish trigger")
-                    if (event.data &&
-                            // to match nested flows
-                            event.data.nestedId == flowId &&
-                            event.runner instanceof FlowRunner) {
-
-                        try {
-                            flowrunner.logger.info("Triggering onFinish closure")
-                            done = true;
-                            c.call();
-                        } catch (Exception e) {
-                            flowrunner.logger.error("Error during execution of onFinish handler");
-                            flowrunner.logger.error("Switching state to FAILED");
-                            throw e
-                        }
-                    }
+        int threads = (options.threads ?: props.getInt(PARALLEL_THREADS, Runtime.runtime.availableProcessors())) as int
+        double share = options.containsKey("progress") ? options.progress as double : 1.0d - progress.get()
+        double step = share / tasks.size()
+
+        def executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()), parallelThreadFactory())
+        try {
+            // results are collected in completion order, so the first failure is seen
+            // as soon as it happens, regardless of the tasks submitted before it
+            def completion = new ExecutorCompletionService(executor)
+            List<Future> futures = tasks.collect { task ->
+                completion.submit({
+                    def result = task.call()
+                    addProgress(step)
+                    return result
+                } as Callable)
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    completion.take().get()
+                } catch (ExecutionException e) {
+                    futures.each { it.cancel(true) }
+                    throw e.cause
                 }
             }
-        };
+            return futures.collect { it.get() }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
 
-        flowrunner.addListener(listener);
+    ThreadFactory parallelThreadFactory() {
+        if (threadUsage) return threadUsage.factory("GroovyExecutor-parallel")
+        def count = new AtomicInteger()
+        return new ThreadFactory() {
+            @Override
+            Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GroovyExecutor-parallel-" + count.getAndIncrement())
+                t.setDaemon(true)
+                return t
+            }
+        }
     }
 
-    def register(Closure c) {
-        onfinish(c)
+    /*
+     * Named limiters shared by all the jobs of the executor (see NamedLimiter): the closure runs
+     * once a permit has been acquired and the permit is released when the closure completes.
+     * Option timeout (in seconds) limits the wait. Permits still held when the job ends
+     * (eg. because it was cancelled or timed out) are released by close().
+     */
+    def withLimit(String name, Closure c) {
+        withLimit([:], name, c)
+    }
+
+    def withLimit(Map options, String name, Closure c) {
+        // job properties can't redefine a limiter shared by all the flows
+        def limiter = NamedLimiter.of(name, sysProps ?: new Props())
+        long timeoutMs = options.timeout ? (long) ((options.timeout as double) * 1000) : 0L
+        def hold = limiter.acquire(timeoutMs)
+        holds.add(hold)
+        try {
+            return c.call()
+        } finally {
+            holds.remove(hold)
+            if (hold.release())
+                log("Limiter $name: waited ${hold.waitMs}ms, held ${hold.holdMs}ms")
+        }
+    }
+
+    // called when the job ends
+    void close() {
+        holds.each { hold ->
+            if (hold.release()) {
+                Metrics.inc("limiter.${hold.name}.released.forced")
+                log("Limiter ${hold.name}: permit still held at the end of the job, released after ${hold.holdMs}ms")
+            }
+        }
+        holds.clear()
+    }
+
+    void addProgress(double delta) {
+        while (true) {
+            def current = progress.get()
+            if (progress.compareAndSet(current, Math.min(1.0d, current + delta)))
+                return
+        }
     }
 
 }
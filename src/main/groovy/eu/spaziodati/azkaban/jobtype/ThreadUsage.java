@@ -0,0 +1,96 @@
+package eu.spaziodati.azkaban.jobtype;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks CPU time and allocated bytes of all the threads created for a job
+ * (the script thread and the helper threads), including the threads that
+ * have already terminated.
+ * Allocated bytes are available only on HotSpot-based JVMs.
+ */
+public class ThreadUsage {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final Set<Thread> live = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private final AtomicLong terminatedCpu = new AtomicLong();
+    private final AtomicLong terminatedAllocated = new AtomicLong();
+
+    public static boolean isCpuTimeSupported() {
+        return threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+    }
+
+    public static boolean isAllocatedBytesSupported() {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return false;
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        return hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * @return a factory of daemon threads that are tracked by this object
+     */
+    public ThreadFactory factory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                int n = count.getAndIncrement();
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Thread current = Thread.currentThread();
+                        live.add(current);
+                        try {
+                            r.run();
+                        } finally {
+                            long cpu = cpuTime(current);
+                            long allocated = allocatedBytes(current);
+                            live.remove(current);
+                            terminatedCpu.addAndGet(cpu);
+                            terminatedAllocated.addAndGet(allocated);
+                        }
+                    }
+                }, n == 0 ? name : name + "-" + n);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    public long getCpuNanos() {
+        long total = terminatedCpu.get();
+        for (Thread t : live)
+            total += cpuTime(t);
+        return total;
+    }
+
+    public long getAllocatedBytes() {
+        long total = terminatedAllocated.get();
+        for (Thread t : live)
+            total += allocatedBytes(t);
+        return total;
+    }
+
+    public Set<Thread> getLiveThreads() {
+        return Collections.unmodifiableSet(live);
+    }
+
+    private static long cpuTime(Thread t) {
+        if (!isCpuTimeSupported()) return 0;
+        long time = threads.getThreadCpuTime(t.getId());
+        return time > 0 ? time : 0;
+    }
+
+    private static long allocatedBytes(Thread t) {
+        if (!isAllocatedBytesSupported()) return 0;
+        long bytes = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(t.getId());
+        return bytes > 0 ? bytes : 0;
+    }
+}